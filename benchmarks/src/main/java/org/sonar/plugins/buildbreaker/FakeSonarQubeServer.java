@@ -0,0 +1,320 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonarqube.ws.Ce.ActivityResponse;
+import org.sonarqube.ws.Ce.ActivityStatusWsResponse;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * An in-process SonarQube server simulating the Compute Engine queue and the web services the
+ * plugin calls while waiting for a quality gate.
+ *
+ * <p>Submitted tasks wait for one of {@code workers} Compute Engine workers, then take a random
+ * processing time between {@code minProcessing} and {@code maxProcessing} ms. Each request fails
+ * with an HTTP 500 with probability {@code errorRate}, or is throttled with an HTTP 429 with
+ * probability {@code throttleRate}. Each analysis fails its quality gate with probability {@code
+ * gateFailureRate}. Every request is counted per path and per second.
+ */
+final class FakeSonarQubeServer implements AutoCloseable {
+
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private static final byte[] NO_METRICS = "{\"metrics\":[],\"total\":0}".getBytes(UTF_8);
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long minProcessing;
+  private final long maxProcessing;
+  private final double errorRate;
+  private final double throttleRate;
+  private final double gateFailureRate;
+
+  // The time at which each worker is done with the tasks submitted so far
+  private final PriorityQueue<Long> workersFreeAt = new PriorityQueue<>();
+  private final AtomicLong taskIds = new AtomicLong();
+  private final Map<String, SimulatedTask> tasks = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> requestsByPath = new ConcurrentHashMap<>();
+  private final Map<Long, LongAdder> requestsBySecond = new ConcurrentHashMap<>();
+
+  FakeSonarQubeServer(
+      int threads,
+      int workers,
+      long minProcessing,
+      long maxProcessing,
+      double errorRate,
+      double throttleRate,
+      double gateFailureRate)
+      throws IOException {
+    this.minProcessing = minProcessing;
+    this.maxProcessing = maxProcessing;
+    this.errorRate = errorRate;
+    this.throttleRate = throttleRate;
+    this.gateFailureRate = gateFailureRate;
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < workers; i++) {
+      workersFreeAt.add(now);
+    }
+
+    executor = Executors.newFixedThreadPool(threads);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 4096);
+    server.setExecutor(executor);
+    server.createContext("/api/ce/task", exchange -> handle(exchange, this::respondTask));
+    server.createContext(
+        "/api/ce/activity_status", exchange -> handle(exchange, this::respondActivityStatus));
+    server.createContext("/api/ce/activity", exchange -> handle(exchange, this::respondActivity));
+    server.createContext(
+        "/api/qualitygates/project_status",
+        exchange -> handle(exchange, this::respondProjectStatus));
+    // No custom metrics, so that the plugin only looks up the names of core metrics
+    server.createContext(
+        "/api/metrics/search",
+        exchange ->
+            handle(
+                exchange,
+                e -> respond(e, MediaTypes.JSON, NO_METRICS)));
+    server.createContext(
+        "/",
+        exchange ->
+            handle(
+                exchange,
+                e -> {
+                  e.sendResponseHeaders(404, -1);
+                  e.close();
+                }));
+    server.start();
+  }
+
+  String url() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  /**
+   * Simulates the upload of an analysis report.
+   *
+   * @return the id of the Compute Engine task processing it
+   */
+  String submit() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long processing =
+        minProcessing + (long) (random.nextDouble() * (maxProcessing - minProcessing));
+    long start;
+    synchronized (workersFreeAt) {
+      start = Math.max(System.currentTimeMillis(), workersFreeAt.poll());
+      workersFreeAt.add(start + processing);
+    }
+    String id = "task-" + taskIds.incrementAndGet();
+    Status gate = random.nextDouble() < gateFailureRate ? Status.ERROR : Status.OK;
+    tasks.put(id, new SimulatedTask(id, start, start + processing, gate));
+    return id;
+  }
+
+  /** @return whether the quality gate of the task's analysis fails */
+  boolean failsGate(String ceTaskId) {
+    return tasks.get(ceTaskId).gate == Status.ERROR;
+  }
+
+  /** @return the number of requests per path, sorted by path */
+  Map<String, Long> requestsByPath() {
+    Map<String, Long> counts = new TreeMap<>();
+    requestsByPath.forEach((path, count) -> counts.put(path, count.sum()));
+    return counts;
+  }
+
+  long totalRequests() {
+    return requestsByPath.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  /** @return the highest number of requests received during a single second */
+  long peakRequestsPerSecond() {
+    return requestsBySecond.values().stream().mapToLong(LongAdder::sum).max().orElse(0L);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange, Handler handler) throws IOException {
+    requestsByPath
+        .computeIfAbsent(exchange.getRequestURI().getPath(), p -> new LongAdder())
+        .increment();
+    requestsBySecond
+        .computeIfAbsent(System.currentTimeMillis() / 1000, s -> new LongAdder())
+        .increment();
+
+    double draw = ThreadLocalRandom.current().nextDouble();
+    if (draw < errorRate) {
+      exchange.sendResponseHeaders(500, -1);
+      exchange.close();
+    } else if (draw < errorRate + throttleRate) {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      exchange.sendResponseHeaders(HTTP_TOO_MANY_REQUESTS, -1);
+      exchange.close();
+    } else {
+      handler.handle(exchange);
+    }
+  }
+
+  private void respondTask(HttpExchange exchange) throws IOException {
+    SimulatedTask task = tasks.get(queryParam(exchange, "id"));
+    if (task == null) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    respond(
+        exchange,
+        MediaTypes.PROTOBUF,
+        TaskResponse.newBuilder().setTask(task.toTask()).build().toByteArray());
+  }
+
+  private void respondActivityStatus(HttpExchange exchange) throws IOException {
+    long now = System.currentTimeMillis();
+    int pending = 0;
+    int inProgress = 0;
+    for (SimulatedTask task : tasks.values()) {
+      if (now < task.start) {
+        pending++;
+      } else if (now < task.end) {
+        inProgress++;
+      }
+    }
+    respond(
+        exchange,
+        MediaTypes.PROTOBUF,
+        ActivityStatusWsResponse.newBuilder()
+            .setPending(pending)
+            .setInProgress(inProgress)
+            .build()
+            .toByteArray());
+  }
+
+  private void respondActivity(HttpExchange exchange) throws IOException {
+    String pageSize = queryParam(exchange, "ps");
+    int limit = pageSize == null ? 100 : Integer.parseInt(pageSize);
+    ActivityResponse.Builder activity = ActivityResponse.newBuilder();
+    long now = System.currentTimeMillis();
+    for (SimulatedTask task : tasks.values()) {
+      if (activity.getTasksCount() >= limit) {
+        break;
+      }
+      if (now < task.end) {
+        activity.addTasks(task.toTask());
+      }
+    }
+    respond(exchange, MediaTypes.PROTOBUF, activity.build().toByteArray());
+  }
+
+  private void respondProjectStatus(HttpExchange exchange) throws IOException {
+    String analysisId = queryParam(exchange, "analysisId");
+    SimulatedTask task =
+        analysisId == null ? null : tasks.get(analysisId.substring("analysis-".length()));
+    if (task == null) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    respond(
+        exchange,
+        MediaTypes.PROTOBUF,
+        ProjectStatusResponse.newBuilder()
+            .setProjectStatus(ProjectStatus.newBuilder().setStatus(task.gate))
+            .build()
+            .toByteArray());
+  }
+
+  private static String queryParam(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getQuery();
+    if (query == null) {
+      return null;
+    }
+    for (String param : query.split("&")) {
+      if (param.startsWith(name + "=")) {
+        return param.substring(name.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  private static void respond(HttpExchange exchange, String mediaType, byte[] content)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", mediaType);
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  @FunctionalInterface
+  private interface Handler {
+    void handle(HttpExchange exchange) throws IOException;
+  }
+
+  private static final class SimulatedTask {
+    private final String id;
+    private final long start;
+    private final long end;
+    private final Status gate;
+
+    SimulatedTask(String id, long start, long end, Status gate) {
+      this.id = id;
+      this.start = start;
+      this.end = end;
+      this.gate = gate;
+    }
+
+    Task toTask() {
+      long now = System.currentTimeMillis();
+      Task.Builder task = Task.newBuilder().setId(id);
+      if (now < start) {
+        task.setStatus(TaskStatus.PENDING);
+      } else if (now < end) {
+        task.setStatus(TaskStatus.IN_PROGRESS);
+      } else {
+        task.setStatus(TaskStatus.SUCCESS).setAnalysisId("analysis-" + id);
+      }
+      return task.build();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+/**
+ * Measures {@link ForbiddenConfigurationBreaker#execute} when none of the forbidden configurations
+ * matches, which is the common case and means every rule is checked.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForbiddenConfigurationBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int rules;
+
+  @Param({"100", "10000"})
+  public int properties;
+
+  private ForbiddenConfigurationBreaker breaker;
+
+  @Setup
+  public void setup() {
+    MapSettings settings = new MapSettings();
+    for (int i = 0; i < properties; i++) {
+      settings.setProperty("sonar.benchmark.property" + i, "value" + i);
+    }
+    StringJoiner forbidden = new StringJoiner(",");
+    for (int i = 0; i < rules; i++) {
+      // Half of the rules name existing properties with another value, half unknown properties
+      forbidden.add(
+          i % 2 == 0
+              ? "sonar.benchmark.property" + (i % properties) + "=forbidden"
+              : "sonar.benchmark.unknown" + i + "=forbidden");
+    }
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, forbidden.toString());
+    breaker = new ForbiddenConfigurationBreaker(new ConfigurationBridge(settings));
+  }
+
+  @Benchmark
+  public void execute() {
+    breaker.execute(null);
+  }
+}
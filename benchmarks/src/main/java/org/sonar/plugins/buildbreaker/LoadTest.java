@@ -0,0 +1,246 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+/**
+ * Runs many simulated builds at the same time against a {@link FakeSonarQubeServer}, each
+ * submitting an analysis and checking its quality gate with its own {@link QualityGateBreaker},
+ * then reports the latency of the checks and the load they put on the server.
+ *
+ * <p>Usage: {@code LoadTest [--option value...] [-Dkey=value...]}, where the {@code -D} arguments
+ * are plugin settings (e.g. {@code -Dsonar.buildbreaker.pollingStrategy=fastStart}) and the options
+ * are listed in {@link #DEFAULTS}. Times are in milliseconds.
+ */
+public final class LoadTest {
+
+  /** The options of the simulation, with their default values. */
+  static final Map<String, String> DEFAULTS = new HashMap<>();
+
+  static {
+    // Number of simulated builds, and of those running at the same time
+    DEFAULTS.put("builds", "1000");
+    DEFAULTS.put("concurrency", "1000");
+    // Builds submit their analyses at random times during this period
+    DEFAULTS.put("rampUp", "10000");
+    // Number of distinct projects, whose Compute Engine task histories are kept apart
+    DEFAULTS.put("projects", "50");
+    // The Compute Engine: number of workers and processing time of a task
+    DEFAULTS.put("workers", "20");
+    DEFAULTS.put("minProcessing", "1000");
+    DEFAULTS.put("maxProcessing", "10000");
+    // Fraction of the requests answered with an HTTP 500, or throttled with an HTTP 429
+    DEFAULTS.put("errorRate", "0");
+    DEFAULTS.put("throttleRate", "0");
+    // Fraction of the analyses failing their quality gate
+    DEFAULTS.put("gateFailureRate", "0.1");
+    // Number of threads of the fake server
+    DEFAULTS.put("serverThreads", "64");
+  }
+
+  private static final String SETTING_PREFIX = "-D";
+
+  private static final String OPTION_PREFIX = "--";
+
+  private LoadTest() {
+    // Entry point only
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>(DEFAULTS);
+    Properties settings = new Properties();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(SETTING_PREFIX) && arg.indexOf('=') > SETTING_PREFIX.length()) {
+        int separator = arg.indexOf('=');
+        settings.setProperty(
+            arg.substring(SETTING_PREFIX.length(), separator), arg.substring(separator + 1));
+      } else if (arg.startsWith(OPTION_PREFIX)
+          && DEFAULTS.containsKey(arg.substring(OPTION_PREFIX.length()))
+          && i + 1 < args.length) {
+        options.put(arg.substring(OPTION_PREFIX.length()), args[++i]);
+      } else {
+        System.err.println(
+            "Usage: LoadTest [--option value...] [-Dkey=value...], with the options "
+                + new TreeMap<>(DEFAULTS));
+        System.exit(2);
+      }
+    }
+    System.out.println("Options: " + new TreeMap<>(options));
+    System.out.println("Settings: " + settings);
+    run(options, settings).print();
+  }
+
+  static Report run(Map<String, String> options, Properties settings)
+      throws IOException, InterruptedException {
+    int builds = Integer.parseInt(options.get("builds"));
+    int projects = Integer.parseInt(options.get("projects"));
+    long rampUp = Long.parseLong(options.get("rampUp"));
+
+    try (FakeSonarQubeServer server =
+        new FakeSonarQubeServer(
+            Integer.parseInt(options.get("serverThreads")),
+            Integer.parseInt(options.get("workers")),
+            Long.parseLong(options.get("minProcessing")),
+            Long.parseLong(options.get("maxProcessing")),
+            Double.parseDouble(options.get("errorRate")),
+            Double.parseDouble(options.get("throttleRate")),
+            Double.parseDouble(options.get("gateFailureRate")))) {
+      Configuration config = toConfiguration(settings);
+      Report report = new Report(builds);
+      ExecutorService executor =
+          Executors.newFixedThreadPool(Integer.parseInt(options.get("concurrency")));
+      long startNanos = System.nanoTime();
+      List<Future<?>> futures = new ArrayList<>(builds);
+      for (int i = 0; i < builds; i++) {
+        String projectKey = "project-" + (i % projects);
+        long submitDelay = rampUp <= 0 ? 0 : ThreadLocalRandom.current().nextLong(rampUp);
+        futures.add(
+            executor.submit(
+                () -> {
+                  simulateBuild(server, config, projectKey, submitDelay, report);
+                  return null;
+                }));
+      }
+      try {
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Simulated build crashed", e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+      report.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      report.requestsByPath = server.requestsByPath();
+      report.totalRequests = server.totalRequests();
+      report.peakRequestsPerSecond = server.peakRequestsPerSecond();
+      return report;
+    }
+  }
+
+  private static Configuration toConfiguration(Properties settings) throws IOException {
+    // The plugin's default values apply, as in an analysis
+    MapSettings mapSettings =
+        new MapSettings(new PropertyDefinitions(BuildBreakerPlugin.getPropertyDefinitions()));
+    mapSettings.setProperty(
+        BuildBreakerPlugin.CACHE_DIR_KEY,
+        Files.createTempDirectory("buildbreaker-loadtest").toString());
+    mapSettings.setProperty(BuildBreakerPlugin.METRICS_KEY, false);
+    mapSettings.addProperties(settings);
+    return new ConfigurationBridge(mapSettings);
+  }
+
+  private static void simulateBuild(
+      FakeSonarQubeServer server,
+      Configuration config,
+      String projectKey,
+      long submitDelay,
+      Report report)
+      throws InterruptedException {
+    Thread.sleep(submitDelay);
+    String ceTaskId = server.submit();
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("projectKey", projectKey);
+    reportTaskProps.setProperty("serverUrl", server.url());
+    reportTaskProps.setProperty("ceTaskId", ceTaskId);
+
+    long startNanos = System.nanoTime();
+    String outcome;
+    try {
+      boolean checked = new QualityGateBreaker(null, config).checkReportTask(reportTaskProps);
+      outcome = checked ? "passed" : "timed out";
+    } catch (DeadlineExceededException e) {
+      outcome = "timed out";
+    } catch (IllegalStateException e) {
+      outcome = server.failsGate(ceTaskId) ? "failed gate" : "errors";
+    } catch (RuntimeException e) {
+      // e.g. an HttpException thrown by sonar-ws when the quality gate cannot be read
+      outcome = "errors";
+    }
+    report.record(outcome, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  /** The outcome of a load test. */
+  static final class Report {
+    private final long[] latencies;
+    private int recorded;
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private long durationMillis;
+    private Map<String, Long> requestsByPath;
+    private long totalRequests;
+    private long peakRequestsPerSecond;
+
+    Report(int builds) {
+      latencies = new long[builds];
+    }
+
+    synchronized void record(String outcome, long latency) {
+      latencies[recorded++] = latency;
+      outcomes.computeIfAbsent(outcome, o -> new LongAdder()).increment();
+    }
+
+    /** @return the latency (ms) under which {@code percent} of the checks completed */
+    synchronized long percentile(double percent) {
+      if (recorded == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(latencies, recorded);
+      Arrays.sort(sorted);
+      int rank = (int) Math.ceil(percent / 100 * sorted.length);
+      return sorted[Math.max(0, rank - 1)];
+    }
+
+    void print() {
+      System.out.println("Builds:              " + recorded + " in " + durationMillis + " ms");
+      outcomes.forEach((outcome, count) -> System.out.println("  " + outcome + ": " + count));
+      System.out.println("Gate latency p50:    " + percentile(50) + " ms");
+      System.out.println("Gate latency p99:    " + percentile(99) + " ms");
+      System.out.println("Gate latency max:    " + percentile(100) + " ms");
+      System.out.println("Total requests:      " + totalRequests);
+      requestsByPath.forEach((path, count) -> System.out.println("  " + path + ": " + count));
+      System.out.println("Requests per build:  " + (double) totalRequests / Math.max(1, recorded));
+      System.out.println("Peak requests/s:     " + peakRequestsPerSecond);
+      System.out.println(
+          "Mean requests/s:     " + totalRequests * 1000 / Math.max(1, durationMillis));
+    }
+  }
+}
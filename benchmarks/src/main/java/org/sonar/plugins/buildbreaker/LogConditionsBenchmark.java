@@ -0,0 +1,89 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Metric;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Comparator;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * Measures {@link QualityGateBreaker#logConditions(List)} for gates made of core metrics, whose
+ * names are looked up, and of custom metrics, which are logged with their keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogConditionsBenchmark {
+
+  private static final Status[] STATUSES = {Status.ERROR, Status.WARN, Status.OK};
+
+  @Param({"10", "100", "500"})
+  public int conditions;
+
+  @Param({"core", "custom"})
+  public String metrics;
+
+  private List<Condition> conditionsList;
+
+  @Setup
+  public void setup() {
+    List<Metric> coreMetrics = CoreMetrics.getMetrics();
+    conditionsList = new ArrayList<>(conditions);
+    for (int i = 0; i < conditions; i++) {
+      String metricKey =
+          "core".equals(metrics)
+              ? coreMetrics.get(i % coreMetrics.size()).getKey()
+              : "custom_metric_" + i;
+      conditionsList.add(
+          Condition.newBuilder()
+              .setStatus(STATUSES[i % STATUSES.length])
+              .setMetricKey(metricKey)
+              .setComparator(Comparator.GT)
+              .setActualValue(Integer.toString(i))
+              .setWarningThreshold("0")
+              .setErrorThreshold("0")
+              .build());
+    }
+  }
+
+  @Benchmark
+  public int logConditions() {
+    return QualityGateBreaker.logConditions(conditionsList);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * Measures a whole quality gate check against an in-process fake server: the task is reported as
+ * pending for a number of polls, then the quality gate is fetched. The polling interval is zero, so
+ * the numbers reflect the client's overhead per request rather than the wait.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Without TCP_NODELAY the fake server's responses wait for delayed acknowledgements
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class PollingLoopBenchmark {
+
+  @Param({"1", "10"})
+  public int polls;
+
+  private final AtomicLong taskIds = new AtomicLong();
+  private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+  private HttpServer server;
+  private QualityGateBreaker breaker;
+  private String serverUrl;
+
+  @Setup
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/ce/task", this::respondTask);
+    server.createContext(
+        "/api/qualitygates/project_status",
+        exchange ->
+            respond(
+                exchange,
+                ProjectStatusResponse.newBuilder()
+                    .setProjectStatus(ProjectStatus.newBuilder().setStatus(Status.OK))
+                    .build()
+                    .toByteArray()));
+    server.start();
+    serverUrl = "http://localhost:" + server.getAddress().getPort();
+
+    MapSettings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, polls + 1);
+    settings.setProperty(BuildBreakerPlugin.QUERY_INTERVAL_KEY, 0);
+    settings.setProperty(
+        BuildBreakerPlugin.CACHE_DIR_KEY,
+        Files.createTempDirectory("buildbreaker-benchmark").toString());
+    breaker = new QualityGateBreaker(null, new ConfigurationBridge(settings));
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void respondTask(HttpExchange exchange) throws IOException {
+    String ceTaskId = exchange.getRequestURI().getQuery().substring("id=".length());
+    int attempt = attempts.computeIfAbsent(ceTaskId, id -> new AtomicInteger()).incrementAndGet();
+    Task.Builder task = Task.newBuilder().setId(ceTaskId);
+    if (attempt < polls) {
+      task.setStatus(TaskStatus.PENDING);
+    } else {
+      attempts.remove(ceTaskId);
+      task.setStatus(TaskStatus.SUCCESS).setAnalysisId("analysis-" + ceTaskId);
+    }
+    respond(exchange, TaskResponse.newBuilder().setTask(task).build().toByteArray());
+  }
+
+  private static void respond(HttpExchange exchange, byte[] content) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", MediaTypes.PROTOBUF);
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  @Benchmark
+  public boolean checkReportTask() {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("projectKey", "group:artifact");
+    reportTaskProps.setProperty("serverUrl", serverUrl);
+    reportTaskProps.setProperty("ceTaskId", "task-" + taskIds.incrementAndGet());
+    return breaker.checkReportTask(reportTaskProps);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Comparator;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * Measures the parsing of the protobuf responses read while waiting for a task and checking its
+ * quality gate, from a stream as the breaker reads them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtobufParsingBenchmark {
+
+  @Param({"10", "500"})
+  public int conditions;
+
+  private byte[] taskResponse;
+  private byte[] projectStatusResponse;
+
+  @Setup
+  public void setup() {
+    taskResponse =
+        TaskResponse.newBuilder()
+            .setTask(
+                Task.newBuilder()
+                    .setId("AVKJ_h9DIK5ABR5tIoQ_")
+                    .setType("REPORT")
+                    .setComponentKey("group:artifact:branch")
+                    .setStatus(TaskStatus.SUCCESS)
+                    .setSubmittedAt("2018-09-03T10:00:00+0000")
+                    .setStartedAt("2018-09-03T10:00:02+0000")
+                    .setExecutedAt("2018-09-03T10:00:04+0000")
+                    .setExecutionTimeMs(1500)
+                    .setAnalysisId("AVdpMFeC3mRBO4SNdnqK"))
+            .build()
+            .toByteArray();
+
+    ProjectStatus.Builder projectStatus = ProjectStatus.newBuilder().setStatus(Status.ERROR);
+    for (int i = 0; i < conditions; i++) {
+      projectStatus.addConditions(
+          Condition.newBuilder()
+              .setStatus(i % 2 == 0 ? Status.ERROR : Status.OK)
+              .setMetricKey("custom_metric_" + i)
+              .setComparator(Comparator.GT)
+              .setActualValue(Integer.toString(i))
+              .setErrorThreshold("0"));
+    }
+    projectStatusResponse =
+        ProjectStatusResponse.newBuilder().setProjectStatus(projectStatus).build().toByteArray();
+  }
+
+  @Benchmark
+  public TaskResponse parseTaskResponse() throws IOException {
+    return TaskResponse.parseFrom(new ByteArrayInputStream(taskResponse));
+  }
+
+  @Benchmark
+  public ProjectStatusResponse parseProjectStatusResponse() throws IOException {
+    return ProjectStatusResponse.parseFrom(new ByteArrayInputStream(projectStatusResponse));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Small properties-file store shared by the builds running on the same agent. The cache is an
+ * optimization only: read and write failures are logged and never break the build.
+ */
+final class BuildBreakerCache {
+
+  private static final Logger LOGGER = Loggers.get(BuildBreakerCache.class);
+
+  static final String SONAR_USER_HOME_KEY = "sonar.userHome";
+
+  private BuildBreakerCache() {
+    // Utility class
+  }
+
+  /**
+   * @return the directory configured by {@link BuildBreakerPlugin#CACHE_DIR_KEY}, by default {@code
+   *     ${sonar.userHome}/buildbreaker} which CI agents usually keep between builds
+   */
+  static File getDirectory(Configuration config) {
+    return config
+        .get(BuildBreakerPlugin.CACHE_DIR_KEY)
+        .map(File::new)
+        .orElseGet(
+            () ->
+                new File(
+                    config
+                        .get(SONAR_USER_HOME_KEY)
+                        .map(File::new)
+                        .orElseGet(() -> new File(System.getProperty("user.home"), ".sonar")),
+                    "buildbreaker"));
+  }
+
+  /** Turns an arbitrary key, e.g. a project key, into a safe file name. */
+  static String toFileName(String key) {
+    return key.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+
+  /**
+   * Turns keys that include a secret, e.g. a login, into a file name that does not disclose them.
+   */
+  static String toPrivateFileName(String... keys) {
+    return Hashing.sha256()
+        .hashString(Joiner.on('\n').join(keys), StandardCharsets.UTF_8)
+        .toString();
+  }
+
+  /** @return the stored properties, or empty properties if the file is missing or unreadable */
+  static Properties load(File file) {
+    Properties properties = new Properties();
+    if (file.isFile()) {
+      try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+        properties.load(reader);
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.debug("Ignoring unreadable cache file {}: {}", file, e.getMessage());
+        properties.clear();
+      }
+    }
+    return properties;
+  }
+
+  /** Atomically replaces the file, so that concurrent builds never read a partially written one. */
+  static void store(File file, Properties properties) {
+    StringWriter content = new StringWriter();
+    try {
+      properties.store(content, null);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    store(file, content.toString());
+  }
+
+  /**
+   * Atomically replaces the file, so that its readers never see a partially written one. The file
+   * keeps the permissions of the one it replaces, or is readable by everyone like any file written
+   * by the build, rather than only by its owner like the temporary file it is written to.
+   */
+  static void store(File file, String content) {
+    Path target = file.getAbsoluteFile().toPath();
+    try {
+      Files.createDirectories(target.getParent());
+      Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+      try {
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+          writer.write(content);
+        }
+        if (Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+          Files.setPosixFilePermissions(
+              temp,
+              Files.exists(target)
+                  ? Files.getPosixFilePermissions(target)
+                  : PosixFilePermissions.fromString("rw-r--r--"));
+        }
+        try {
+          Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Unable to write file {}: {}", file, e.getMessage());
+    }
+  }
+}
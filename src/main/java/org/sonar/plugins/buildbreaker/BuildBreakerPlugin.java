@@ -21,6 +21,7 @@ package org.sonar.plugins.buildbreaker;
 
 import static java.util.Arrays.asList;
 
+import java.util.List;
 import org.sonar.api.Plugin;
 import org.sonar.api.PropertyType;
 import org.sonar.api.config.PropertyDefinition;
@@ -37,60 +38,624 @@ public class BuildBreakerPlugin implements Plugin {
 
   static final String QUERY_INTERVAL_KEY = "sonar.buildbreaker.queryInterval";
 
+  static final String TIMEOUT_KEY = "sonar.buildbreaker.timeout";
+
+  static final String TIMEOUT_OUTCOME_KEY = "sonar.buildbreaker.timeoutOutcome";
+
+  static final String CANCEL_ON_ABORT_KEY = "sonar.buildbreaker.cancelOnAbort";
+
+  static final String SUPERSEDE_PENDING_KEY = "sonar.buildbreaker.supersedePending";
+
+  static final String POLLING_STRATEGY_KEY = "sonar.buildbreaker.pollingStrategy";
+
+  static final String QUERY_INITIAL_INTERVAL_KEY = "sonar.buildbreaker.queryInitialInterval";
+
+  static final String FAST_START_ATTEMPTS_KEY = "sonar.buildbreaker.fastStartAttempts";
+
   private static final String TOTAL_WAIT_TIME_DESCRIPTION =
       String.format(
-          "Total wait time is <code>%s * %s</code>.",
+          "Total wait time is at most <code>%s * %s</code>.",
           BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, BuildBreakerPlugin.QUERY_INTERVAL_KEY);
 
+  static final String CE_HISTORY_SIZE_KEY = "sonar.buildbreaker.ceHistorySize";
+
+  static final String SHARED_POLLING_KEY = "sonar.buildbreaker.sharedPolling";
+
+  static final String QUEUE_AWARE_KEY = "sonar.buildbreaker.queueAware";
+
+  static final String CACHE_DIR_KEY = "sonar.buildbreaker.cacheDir";
+
+  static final String METRIC_NAMES_TTL_KEY = "sonar.buildbreaker.metricNamesTtl";
+
+  static final String RESULT_CACHE_TTL_KEY = "sonar.buildbreaker.resultCacheTtl";
+
+  static final String RESULT_CACHE_SIZE_KEY = "sonar.buildbreaker.resultCacheSize";
+
+  static final String RESULT_CACHE_BYPASS_KEY = "sonar.buildbreaker.resultCacheBypass";
+
+  static final String REVISION_KEY = "sonar.buildbreaker.revision";
+
   static final String FORBIDDEN_CONF_KEY = "sonar.buildbreaker.forbiddenConf";
 
+  static final String FORBIDDEN_CONF_POLICY_KEY = "sonar.buildbreaker.forbiddenConfPolicy";
+
+  static final String FORBIDDEN_CONF_POLICY_SHA256_KEY =
+      "sonar.buildbreaker.forbiddenConfPolicySha256";
+
+  static final String FORBIDDEN_CONF_POLICY_TTL_KEY = "sonar.buildbreaker.forbiddenConfPolicyTtl";
+
   static final String ALTERNATIVE_SERVER_URL_KEY = "sonar.buildbreaker.alternativeServerUrl";
 
+  static final String REPORT_TASK_PATHS_KEY = "sonar.buildbreaker.reportTaskPaths";
+
+  static final String PARALLELISM_KEY = "sonar.buildbreaker.parallelism";
+
+  static final String CONNECT_TIMEOUT_KEY = "sonar.buildbreaker.connectTimeout";
+
+  static final String READ_TIMEOUT_KEY = "sonar.buildbreaker.readTimeout";
+
+  static final String CALL_TIMEOUT_KEY = "sonar.buildbreaker.callTimeout";
+
+  static final String CIRCUIT_BREAKER_KEY = "sonar.buildbreaker.circuitBreaker";
+
+  static final String CIRCUIT_FAILURE_RATE_KEY = "sonar.buildbreaker.circuitFailureRate";
+
+  static final String CIRCUIT_SLOW_REQUEST_KEY = "sonar.buildbreaker.circuitSlowRequest";
+
+  static final String CIRCUIT_OPEN_DURATION_KEY = "sonar.buildbreaker.circuitOpenDuration";
+
+  static final String CIRCUIT_OPEN_OUTCOME_KEY = "sonar.buildbreaker.circuitOpenOutcome";
+
+  static final String WEBHOOK_PORT_KEY = "sonar.buildbreaker.webhookPort";
+
+  static final String WEBHOOK_ADDRESS_KEY = "sonar.buildbreaker.webhookAddress";
+
+  static final String WEBHOOK_PATH_KEY = "sonar.buildbreaker.webhookPath";
+
+  static final String WEBHOOK_SECRET_KEY = "sonar.buildbreaker.webhookSecret";
+
+  static final String WEBHOOK_TIMEOUT_KEY = "sonar.buildbreaker.webhookTimeout";
+
+  static final String METRICS_KEY = "sonar.buildbreaker.metrics";
+
+  static final String PROMETHEUS_FILE_KEY = "sonar.buildbreaker.prometheusFile";
+
+  static final String VERDICT_DIR_KEY = "sonar.buildbreaker.verdictDir";
+
+  static final String PREFLIGHT_KEY = "sonar.buildbreaker.preflight";
+
+  static final String PREFLIGHT_TTL_KEY = "sonar.buildbreaker.preflightTtl";
+
+  static final String UPSTREAM_PROJECTS_KEY = "sonar.buildbreaker.upstreamProjects";
+
+  static final String UPSTREAM_TTL_KEY = "sonar.buildbreaker.upstreamTtl";
+
+  static final String DETACHED_KEY = "sonar.buildbreaker.detached";
+
+  static final String HANDOFF_FILE_KEY = "sonar.buildbreaker.handoffFile";
+
+  static final String CREDENTIALS_ENV_KEY = "sonar.buildbreaker.credentialsEnv";
+
   @Override
   public void define(Context context) {
-    context.addExtensions(ForbiddenConfigurationBreaker.class, QualityGateBreaker.class);
     context.addExtensions(
-        asList(
-            PropertyDefinition.builder(SKIP_KEY)
-                .name("Skip quality gate check")
-                .description(
-                    "If set to true, the quality gate is not checked.  By default the build will break "
-                        + "if the project does not pass the quality gate.")
-                .onQualifiers(Qualifiers.PROJECT)
-                .type(PropertyType.BOOLEAN)
-                .defaultValue("false")
-                .build(),
-            PropertyDefinition.builder(QUERY_MAX_ATTEMPTS_KEY)
-                .name("API query max attempts")
-                .description(
-                    "The maximum number of queries to the API when waiting for report processing.  The "
-                        + "build will break if this is reached.<br/>"
-                        + TOTAL_WAIT_TIME_DESCRIPTION)
-                .onQualifiers(Qualifiers.PROJECT)
-                .type(PropertyType.INTEGER)
-                .defaultValue("30")
-                .build(),
-            PropertyDefinition.builder(QUERY_INTERVAL_KEY)
-                .name("API query interval (ms)")
-                .description(
-                    "The interval between queries to the API when waiting for report processing.<br/>"
-                        + BuildBreakerPlugin.TOTAL_WAIT_TIME_DESCRIPTION)
-                .onQualifiers(Qualifiers.PROJECT)
-                .type(PropertyType.INTEGER)
-                .defaultValue("10000")
-                .build(),
-            PropertyDefinition.builder(FORBIDDEN_CONF_KEY)
-                .name("Forbidden configuration parameters")
-                .description(
-                    "Comma-separated list of <code>key=value</code> pairs that should break the build.")
-                .onQualifiers(Qualifiers.PROJECT)
-                .build(),
-            PropertyDefinition.builder(ALTERNATIVE_SERVER_URL_KEY)
-                .name("Alternative server URL")
-                .description(
-                    "URL to use for web service requests. If unset, uses the <code>serverUrl</code> "
-                        + "property from <code>${sonar.working.directory}/report-task.txt</code>.")
-                .onQualifiers(Qualifiers.PROJECT)
-                .build()));
+        ForbiddenConfigurationSensor.class,
+        PreflightSensor.class,
+        ForbiddenConfigurationBreaker.class,
+        QualityGateBreaker.class);
+    context.addExtensions(getPropertyDefinitions());
+  }
+
+  /**
+   * @return the definitions of all configuration properties, which also provide their default
+   *     values outside of a SonarQube analysis
+   */
+  static List<PropertyDefinition> getPropertyDefinitions() {
+    return asList(
+        PropertyDefinition.builder(SKIP_KEY)
+            .name("Skip quality gate check")
+            .description(
+                "If set to true, the quality gate is not checked.  By default the build will break "
+                    + "if the project does not pass the quality gate.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(QUERY_MAX_ATTEMPTS_KEY)
+            .name("API query max attempts")
+            .description(
+                "The maximum number of queries to the API when waiting for report processing.  The "
+                    + "build will break if this is reached.<br/>"
+                    + TOTAL_WAIT_TIME_DESCRIPTION)
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("30")
+            .build(),
+        PropertyDefinition.builder(QUERY_INTERVAL_KEY)
+            .name("API query interval (ms)")
+            .description(
+                "The interval between queries to the API when waiting for report processing.<br/>"
+                    + BuildBreakerPlugin.TOTAL_WAIT_TIME_DESCRIPTION)
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("10000")
+            .build(),
+        PropertyDefinition.builder(TIMEOUT_KEY)
+            .name("Quality gate check timeout (ms)")
+            .description(
+                "The maximum wall-clock time of the whole quality gate check, including slow "
+                    + "server responses.  Every query is given the time that remains.  Set to "
+                    + "<code>0</code> to only rely on <code>"
+                    + QUERY_MAX_ATTEMPTS_KEY
+                    + "</code>.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("0")
+            .build(),
+        PropertyDefinition.builder(TIMEOUT_OUTCOME_KEY)
+            .name("Quality gate check timeout outcome")
+            .description(
+                "What happens when the quality gate could not be checked within <code>"
+                    + TIMEOUT_KEY
+                    + "</code>: <code>fail</code> breaks the build, <code>warn</code> logs a "
+                    + "warning, and <code>pass</code> lets the build go on but writes <code>"
+                    + "${sonar.working.directory}/"
+                    + QualityGateBreaker.TIMEOUT_MARKER_FILE_NAME
+                    + "</code> listing the unchecked analyses.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.SINGLE_SELECT_LIST)
+            .options(Deadline.OUTCOME_FAIL, Deadline.OUTCOME_WARN, Deadline.OUTCOME_PASS)
+            .defaultValue(Deadline.OUTCOME_FAIL)
+            .build(),
+        PropertyDefinition.builder(CANCEL_ON_ABORT_KEY)
+            .name("Cancel abandoned report processing")
+            .description(
+                "If true, the report processing task is canceled when the quality gate check "
+                    + "gives up waiting for it, i.e. times out, reaches <code>"
+                    + QUERY_MAX_ATTEMPTS_KEY
+                    + "</code> or is interrupted, or when the build is aborted while waiting.  "
+                    + "Only pending tasks can be canceled, which requires the 'Administer' "
+                    + "permission on the project.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(SUPERSEDE_PENDING_KEY)
+            .name("Supersede pending report processing")
+            .description(
+                "If true, the pending report processing tasks of the same project, branch and "
+                    + "pull request which were submitted before the analysis are canceled, since "
+                    + "they are outdated.  The builds waiting for them fail.  Requires the "
+                    + "'Administer' permission on the project.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(POLLING_STRATEGY_KEY)
+            .name("API query polling strategy")
+            .description(
+                "How the interval between queries evolves while waiting for report processing. "
+                    + "<code>fixed</code> always waits <code>"
+                    + QUERY_INTERVAL_KEY
+                    + "</code>, <code>exponential</code> doubles the interval (with random "
+                    + "jitter) from <code>"
+                    + QUERY_INITIAL_INTERVAL_KEY
+                    + "</code> up to <code>"
+                    + QUERY_INTERVAL_KEY
+                    + "</code>, and <code>fastStart</code> queries every <code>"
+                    + QUERY_INITIAL_INTERVAL_KEY
+                    + "</code> for the first <code>"
+                    + FAST_START_ATTEMPTS_KEY
+                    + "</code> queries before backing off the same way.  A <code>Retry-After"
+                    + "</code> header sent with HTTP 429 or 503 responses is always honored.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.SINGLE_SELECT_LIST)
+            .options(PollingStrategy.FIXED, PollingStrategy.EXPONENTIAL, PollingStrategy.FAST_START)
+            .defaultValue(PollingStrategy.FIXED)
+            .build(),
+        PropertyDefinition.builder(QUERY_INITIAL_INTERVAL_KEY)
+            .name("API query initial interval (ms)")
+            .description(
+                "The first interval between queries for the <code>exponential</code> and "
+                    + "<code>fastStart</code> polling strategies.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("1000")
+            .build(),
+        PropertyDefinition.builder(FAST_START_ATTEMPTS_KEY)
+            .name("API query fast start attempts")
+            .description(
+                "The number of queries made every <code>"
+                    + QUERY_INITIAL_INTERVAL_KEY
+                    + "</code> before the <code>fastStart</code> polling strategy starts to "
+                    + "back off.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("5")
+            .build(),
+        PropertyDefinition.builder(CE_HISTORY_SIZE_KEY)
+            .name("Report processing history size")
+            .description(
+                "The number of previous report processing durations remembered per project and "
+                    + "server.  They are used to wait until the report is expected to be processed "
+                    + "before the first query, within the total wait time, and to shorten the "
+                    + "intervals around that time.  They are stored in <code>"
+                    + CACHE_DIR_KEY
+                    + "</code>.  Disabled if <code>0</code>, e.g. set to <code>10</code> to enable.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("0")
+            .build(),
+        PropertyDefinition.builder(SHARED_POLLING_KEY)
+            .name("Shared polling")
+            .description(
+                "If true, the builds running on the same agent with the same credentials share a "
+                    + "single listing of the Compute Engine queue through <code>"
+                    + CACHE_DIR_KEY
+                    + "</code>, refreshed at most every <code>"
+                    + QUERY_INTERVAL_KEY
+                    + "</code> by whichever build needs it first, instead of each querying its own "
+                    + "task.  Requires the 'Administer System' permission.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(QUEUE_AWARE_KEY)
+            .name("Compute Engine queue awareness")
+            .description(
+                "If true, the length of the Compute Engine queue is used to estimate when the "
+                    + "report will be processed: queries are spaced out while it is deep in the "
+                    + "queue, and the check gives up right away if it is not expected to complete "
+                    + "within <code>"
+                    + TIMEOUT_KEY
+                    + "</code>.  Requires the 'Administer System' permission and a report "
+                    + "processing history (see <code>"
+                    + CE_HISTORY_SIZE_KEY
+                    + "</code>).")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(CACHE_DIR_KEY)
+            .name("Cache directory")
+            .description(
+                "Directory where information shared between builds on the same machine is "
+                    + "stored.  If unset, uses <code>${sonar.userHome}/buildbreaker</code>.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(METRIC_NAMES_TTL_KEY)
+            .name("Metric names cache duration")
+            .description(
+                "Time in milliseconds during which the names of custom metrics, fetched from the "
+                    + "server to log the failed conditions, are cached per server.  Disabled if "
+                    + "<code>0</code>, in which case their keys are logged instead, e.g. set to "
+                    + "<code>86400000</code> to fetch them once a day.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("0")
+            .build(),
+        PropertyDefinition.builder(RESULT_CACHE_TTL_KEY)
+            .name("Quality gate result cache duration")
+            .description(
+                "Time in milliseconds during which a quality gate verdict is reused when the "
+                    + "same report, or the same <code>"
+                    + REVISION_KEY
+                    + "</code> of the project and branch, is checked again.  Failed verdicts are "
+                    + "only reused for the same report.  Disabled if <code>0</code>, e.g. set to "
+                    + "<code>86400000</code> to reuse verdicts for a day.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("0")
+            .build(),
+        PropertyDefinition.builder(RESULT_CACHE_SIZE_KEY)
+            .name("Quality gate result cache size")
+            .description(
+                "The maximum number of quality gate verdicts kept on the agent, the oldest being "
+                    + "evicted first.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("1000")
+            .build(),
+        PropertyDefinition.builder(RESULT_CACHE_BYPASS_KEY)
+            .name("Bypass quality gate result cache")
+            .description(
+                "If true, the quality gate is always checked on the server, and the result cache "
+                    + "is only updated.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(REVISION_KEY)
+            .name("SCM revision")
+            .description(
+                "The revision being analysed, e.g. <code>${GIT_COMMIT}</code>, so that a rerun of "
+                    + "the build for the same revision reuses the quality gate verdict.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(FORBIDDEN_CONF_KEY)
+            .name("Forbidden configuration parameters")
+            .description(
+                "Comma-separated list of <code>key=value</code> pairs that should break the build.  "
+                    + "Keys starting with <code>glob:</code> may contain <code>*</code> and "
+                    + "<code>?</code> wildcards, and values starting with <code>regex:</code> are "
+                    + "regular expressions.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(FORBIDDEN_CONF_POLICY_KEY)
+            .name("Forbidden configuration policy")
+            .description(
+                "Path or HTTP(S) URL of a file listing more forbidden configurations, one "
+                    + "<code>key=value</code> pair per line.  Blank lines and lines starting with "
+                    + "<code>#</code> are ignored.  A downloaded policy is cached on the agent.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(FORBIDDEN_CONF_POLICY_SHA256_KEY)
+            .name("Forbidden configuration policy digest")
+            .description(
+                "If set, the SHA-256 digest (in hexadecimal) the forbidden configuration policy "
+                    + "must have.  The build breaks if the policy has another one.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(FORBIDDEN_CONF_POLICY_TTL_KEY)
+            .name("Forbidden configuration policy cache duration")
+            .description(
+                "Time in milliseconds during which a downloaded forbidden configuration policy is "
+                    + "used without checking whether it has changed.  Set to <code>0</code> to "
+                    + "check every time.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("3600000")
+            .build(),
+        PropertyDefinition.builder(ALTERNATIVE_SERVER_URL_KEY)
+            .name("Alternative server URL")
+            .description(
+                "URL to use for web service requests. If unset, uses the <code>serverUrl</code> "
+                    + "property from <code>${sonar.working.directory}/report-task.txt</code>.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(REPORT_TASK_PATHS_KEY)
+            .name("Report task files")
+            .description(
+                "Comma-separated list of <code>report-task.txt</code> files, or directories "
+                    + "searched for them, whose quality gates are all checked.  Relative paths are "
+                    + "resolved against the project base directory.  If unset, only <code>"
+                    + "${sonar.working.directory}/report-task.txt</code> is checked.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .multiValues(true)
+            .build(),
+        PropertyDefinition.builder(PARALLELISM_KEY)
+            .name("Quality gate check parallelism")
+            .description(
+                "The maximum number of projects from <code>"
+                    + REPORT_TASK_PATHS_KEY
+                    + "</code> whose quality gates are checked at the same time.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("4")
+            .build(),
+        PropertyDefinition.builder(CONNECT_TIMEOUT_KEY)
+            .name("API connect timeout (ms)")
+            .description(
+                "The maximum time to establish a connection to the server.  Connections are kept "
+                    + "alive and reused by later queries, including those of later builds run by "
+                    + "the same JVM.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("10000")
+            .build(),
+        PropertyDefinition.builder(READ_TIMEOUT_KEY)
+            .name("API read timeout (ms)")
+            .description("The maximum time to wait for data from the server during a query.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("60000")
+            .build(),
+        PropertyDefinition.builder(CALL_TIMEOUT_KEY)
+            .name("API call timeout (ms)")
+            .description(
+                "The maximum time a single query may take, from connecting to reading the whole "
+                    + "response.  Set to <code>0</code> to disable.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("120000")
+            .build(),
+        PropertyDefinition.builder(CIRCUIT_BREAKER_KEY)
+            .name("Circuit breaker")
+            .description(
+                "If true, the queries to the server stop for <code>"
+                    + CIRCUIT_OPEN_DURATION_KEY
+                    + "</code> once too many of them failed or were slow, across all the builds "
+                    + "sharing <code>"
+                    + CACHE_DIR_KEY
+                    + "</code>.  A single query then probes whether the server has recovered.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(CIRCUIT_FAILURE_RATE_KEY)
+            .name("Circuit breaker failure rate (%)")
+            .description(
+                "The percentage of the last "
+                    + CircuitBreaker.WINDOW_SIZE
+                    + " queries that must have failed or been slow to open the circuit.  A query "
+                    + "fails if it cannot be sent or gets an HTTP 429 or 5xx response.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("50")
+            .build(),
+        PropertyDefinition.builder(CIRCUIT_SLOW_REQUEST_KEY)
+            .name("Circuit breaker slow query (ms)")
+            .description(
+                "The time after which a query counts as failed for the circuit breaker.  Set to "
+                    + "<code>0</code> to only count actual failures.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("10000")
+            .build(),
+        PropertyDefinition.builder(CIRCUIT_OPEN_DURATION_KEY)
+            .name("Circuit breaker open duration (ms)")
+            .description("How long the circuit stays open before a single query probes the server.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("60000")
+            .build(),
+        PropertyDefinition.builder(CIRCUIT_OPEN_OUTCOME_KEY)
+            .name("Circuit breaker open outcome")
+            .description(
+                "What happens when the quality gate could not be checked because the circuit is "
+                    + "open: <code>fail</code> breaks the build right away, and <code>pass</code> "
+                    + "lets the build go on with a warning but writes <code>"
+                    + "${sonar.working.directory}/"
+                    + QualityGateBreaker.CIRCUIT_OPEN_MARKER_FILE_NAME
+                    + "</code> listing the unchecked analyses.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.SINGLE_SELECT_LIST)
+            .options(Deadline.OUTCOME_FAIL, Deadline.OUTCOME_PASS)
+            .defaultValue(Deadline.OUTCOME_FAIL)
+            .build(),
+        PropertyDefinition.builder(WEBHOOK_PORT_KEY)
+            .name("Webhook listener port")
+            .description(
+                "If set, the quality gate status is received from a project webhook sent to this "
+                    + "port instead of being polled for.  The webhook has to be configured on the "
+                    + "server, with the secret set in <code>"
+                    + WEBHOOK_SECRET_KEY
+                    + "</code>.  If no webhook is received within <code>"
+                    + WEBHOOK_TIMEOUT_KEY
+                    + "</code>, the API is polled as usual.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .build(),
+        PropertyDefinition.builder(WEBHOOK_ADDRESS_KEY)
+            .name("Webhook listener address")
+            .description(
+                "The address the webhook listener binds to.  Set it to an address the server can "
+                    + "reach, or <code>0.0.0.0</code> for all interfaces, unless the server runs "
+                    + "on the build agent.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("127.0.0.1")
+            .build(),
+        PropertyDefinition.builder(WEBHOOK_PATH_KEY)
+            .name("Webhook listener path")
+            .description("The path at which the webhook listener receives payloads.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("/buildbreaker")
+            .build(),
+        PropertyDefinition.builder(WEBHOOK_SECRET_KEY)
+            .name("Webhook secret")
+            .description(
+                "The secret of the webhook, required by the webhook listener.  Payloads without a "
+                    + "valid <code>"
+                    + WebhookListener.HMAC_HEADER
+                    + "</code> signature are rejected.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.PASSWORD)
+            .build(),
+        PropertyDefinition.builder(WEBHOOK_TIMEOUT_KEY)
+            .name("Webhook timeout (ms)")
+            .description("How long to wait for the webhook before falling back to polling the API.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("60000")
+            .build(),
+        PropertyDefinition.builder(METRICS_KEY)
+            .name("Quality gate check metrics")
+            .description(
+                "If set to true, the timings of the quality gate check (CE queue and execution "
+                    + "time, polls, request latencies, ...) are written as JSON to <code>"
+                    + GateCheckMetrics.JSON_FILE_NAME
+                    + "</code>, next to <code>report-task.txt</code>.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(PROMETHEUS_FILE_KEY)
+            .name("Prometheus metrics file")
+            .description(
+                "If set, the timings of the quality gate check are also written to this file in "
+                    + "the Prometheus text format, e.g. into the directory of the node exporter's "
+                    + "textfile collector.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(VERDICT_DIR_KEY)
+            .name("Verdict directory")
+            .description(
+                "If set, the verdict of the quality gate check (status, conditions, analysis id "
+                    + "and timings) is written to <code>"
+                    + GateVerdictReport.JSON_FILE_NAME
+                    + "</code> and <code>"
+                    + GateVerdictReport.JUNIT_FILE_NAME
+                    + "</code> in this directory, for later CI stages.  Relative paths are "
+                    + "resolved against the project base directory.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(PREFLIGHT_KEY)
+            .name("Pre-flight check")
+            .description(
+                "If true, checks when the analysis starts that the server is reachable, the "
+                    + "credentials are valid and they grant the permission to read the quality "
+                    + "gate status, so that a misconfigured build fails before the analysis.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(PREFLIGHT_TTL_KEY)
+            .name("Pre-flight check cache duration")
+            .description(
+                "Time in milliseconds during which a passed pre-flight check is not repeated for "
+                    + "the same server, project and login.  Set to <code>0</code> to check every "
+                    + "time.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("300000")
+            .build(),
+        PropertyDefinition.builder(UPSTREAM_PROJECTS_KEY)
+            .name("Upstream projects")
+            .description(
+                "Comma-separated list of the keys of other projects, e.g. libraries the project "
+                    + "depends on, whose current quality gate must pass as well.  A key may be "
+                    + "followed by <code>@</code> and a branch name.  Their statuses are looked up "
+                    + "while waiting for the report processing.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .multiValues(true)
+            .build(),
+        PropertyDefinition.builder(UPSTREAM_TTL_KEY)
+            .name("Upstream quality gate cache duration")
+            .description(
+                "Time in milliseconds during which the quality gate status of an upstream project "
+                    + "is cached per server, project and branch.  Set to <code>0</code> to look it "
+                    + "up every time.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.INTEGER)
+            .defaultValue("60000")
+            .build(),
+        PropertyDefinition.builder(DETACHED_KEY)
+            .name("Detached quality gate check")
+            .description(
+                "If set to true, the analysis does not wait for the quality gate.  Instead, the "
+                    + "information needed to check it later is written to <code>"
+                    + HANDOFF_FILE_KEY
+                    + "</code>, and the check is completed by a separate <code>"
+                    + "QualityGateAwait</code> step.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .type(PropertyType.BOOLEAN)
+            .defaultValue("false")
+            .build(),
+        PropertyDefinition.builder(HANDOFF_FILE_KEY)
+            .name("Detached quality gate check handoff file")
+            .description(
+                "File written by a detached quality gate check.  If unset, uses <code>"
+                    + "${sonar.working.directory}/buildbreaker-handoff.properties</code>.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .build(),
+        PropertyDefinition.builder(CREDENTIALS_ENV_KEY)
+            .name("Detached quality gate check credentials variable")
+            .description(
+                "Name of the environment variable holding the token (or login) used by the "
+                    + "<code>QualityGateAwait</code> step.  Credentials are never written to the "
+                    + "handoff file.")
+            .onQualifiers(Qualifiers.PROJECT)
+            .defaultValue("SONAR_TOKEN")
+            .build());
   }
 }
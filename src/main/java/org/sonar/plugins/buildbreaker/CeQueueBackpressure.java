@@ -0,0 +1,129 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Ce.ActivityStatusWsResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * Estimates, from the length of the Compute Engine queue reported by {@code
+ * api/ce/activity_status}, when a task that has just been submitted will reach the front of the
+ * queue, so that it is polled rarely while it is deep in the queue and with the usual intervals
+ * once it is expected to be processed.
+ *
+ * <p>The tasks pending right after the submission are assumed to be ahead of it, and to take as
+ * long as the project's own reports, spread over as many workers as there are tasks in progress.
+ * When the task is still pending after the expected time, the queue is looked at again.
+ */
+final class CeQueueBackpressure {
+
+  private static final Logger LOGGER = Loggers.get(CeQueueBackpressure.class);
+
+  private final WsConnector wsConnector;
+  private final long executionTime;
+
+  private long frontAtNanos;
+  private long refreshedAtNanos;
+
+  private CeQueueBackpressure(WsConnector wsConnector, long executionTime) {
+    this.wsConnector = wsConnector;
+    this.executionTime = executionTime;
+  }
+
+  /**
+   * @param executionTime the usual processing time of a report, in milliseconds
+   * @return the estimate, or empty if the queue cannot be read, e.g. without the 'Administer
+   *     System' permission
+   */
+  static Optional<CeQueueBackpressure> start(WsConnector wsConnector, long executionTime) {
+    CeQueueBackpressure backpressure = new CeQueueBackpressure(wsConnector, executionTime);
+    return backpressure.refresh() ? Optional.of(backpressure) : Optional.empty();
+  }
+
+  /** @return the milliseconds until the task is expected to have been processed */
+  long expectedWait() {
+    return untilFront() + executionTime;
+  }
+
+  /**
+   * @param status the status of the task reported by the last query
+   * @param strategyDelay the delay chosen by the polling strategy
+   * @return the milliseconds to wait before the next query: half of the time left until the task
+   *     reaches the front of the queue, and never less than {@code strategyDelay}
+   */
+  long nextDelay(TaskStatus status, long strategyDelay) {
+    if (status != TaskStatus.PENDING) {
+      return strategyDelay;
+    }
+    if (untilFront() == 0
+        && System.nanoTime() - refreshedAtNanos > TimeUnit.MILLISECONDS.toNanos(executionTime)) {
+      // Still pending although expected at the front: the queue was longer or slower than assumed
+      refresh();
+    }
+    return Math.max(strategyDelay, untilFront() / 2);
+  }
+
+  private long untilFront() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(frontAtNanos - System.nanoTime()));
+  }
+
+  /** @return false if the queue could not be read */
+  private boolean refresh() {
+    WsResponse wsResponse =
+        wsConnector.call(
+            new GetRequest("api/ce/activity_status").setMediaType(MediaTypes.PROTOBUF));
+    refreshedAtNanos = System.nanoTime();
+    if (!wsResponse.isSuccessful()) {
+      LOGGER.debug(
+          "Unable to read the Compute Engine queue length (HTTP {}), polling as usual",
+          wsResponse.code());
+      return false;
+    }
+    ActivityStatusWsResponse status;
+    try {
+      status = ActivityStatusWsResponse.parseFrom(wsResponse.contentStream());
+    } catch (IOException e) {
+      LOGGER.debug("Unable to parse the Compute Engine queue length: {}", e.getMessage());
+      return false;
+    }
+
+    // The task itself is one of the pending tasks, unless it is already in progress
+    int ahead = Math.max(0, status.getPending() - 1);
+    int workers = Math.max(1, status.getInProgress());
+    long rounds = (ahead + workers - 1) / workers;
+    frontAtNanos = refreshedAtNanos + TimeUnit.MILLISECONDS.toNanos(rounds * executionTime);
+    LOGGER.info(
+        "{} tasks ahead in the Compute Engine queue, {} in progress, expecting report processing "
+            + "to complete in {} ms...",
+        ahead,
+        status.getInProgress(),
+        expectedWait());
+    return true;
+  }
+}
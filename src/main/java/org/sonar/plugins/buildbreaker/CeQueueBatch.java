@@ -0,0 +1,222 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Ce.ActivityResponse;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * Answers "is this task still queued or running?" for many Compute Engine tasks of the same server
+ * with a single {@code api/ce/activity} request, instead of one {@code api/ce/task} request per
+ * task. Tasks that are no longer in the queue still have to be fetched individually, once.
+ *
+ * <p>Listing the whole queue requires the 'Administer System' permission. Without it, or when the
+ * queue is too long to be listed in one page, no status is known and callers fall back to querying
+ * their task directly.
+ *
+ * <p>The listing can also be shared with the other builds running on the same agent through a file.
+ * Whichever build finds the file outdated first locks it, lists the queue and publishes the result
+ * while the others wait for the lock, then read it. The lock is released by the operating system if
+ * the build holding it dies, so that another build takes over.
+ */
+final class CeQueueBatch {
+
+  private static final Logger LOGGER = Loggers.get(CeQueueBatch.class);
+
+  static final int PAGE_SIZE = 1000;
+
+  private static final String FETCHED_AT_KEY = "fetchedAt";
+
+  private static final String SUPPORTED_KEY = "supported";
+
+  private static final String COMPLETE_KEY = "complete";
+
+  private static final String TASKS_KEY = "tasks";
+
+  // File locks are held by the whole JVM, so its own threads have to be serialized separately
+  private static final Object SHARED_LOCK = new Object();
+
+  private final WsConnector wsConnector;
+  private final long maxAge;
+  private final File sharedFile;
+
+  private Map<String, TaskStatus> currentTasks = Collections.emptyMap();
+  private boolean complete;
+  private long fetchedAt;
+  private boolean supported = true;
+
+  /**
+   * @param wsConnector connector to the server running the tasks
+   * @param maxAge milliseconds during which a queue listing is reused by all callers
+   */
+  CeQueueBatch(WsConnector wsConnector, long maxAge) {
+    this(wsConnector, maxAge, null);
+  }
+
+  /**
+   * @param sharedFile file through which the listing is shared with the other builds of the agent,
+   *     or {@code null}
+   */
+  CeQueueBatch(WsConnector wsConnector, long maxAge, File sharedFile) {
+    this.wsConnector = wsConnector;
+    this.maxAge = maxAge;
+    this.sharedFile = sharedFile;
+  }
+
+  /**
+   * @return {@code PENDING} or {@code IN_PROGRESS} if the task is known to be in the queue, empty
+   *     if the task has left the queue or its status is unknown
+   */
+  synchronized Optional<TaskStatus> currentStatus(String ceTaskId) {
+    if (supported && System.currentTimeMillis() - fetchedAt > maxAge) {
+      refresh();
+    }
+    if (!supported || !complete) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(currentTasks.get(ceTaskId));
+  }
+
+  private void refresh() {
+    if (sharedFile == null) {
+      fetch();
+      return;
+    }
+    if (loadShared()) {
+      return;
+    }
+    File lockFile = new File(sharedFile.getPath() + ".lock");
+    synchronized (SHARED_LOCK) {
+      try {
+        Files.createDirectories(lockFile.getAbsoluteFile().getParentFile().toPath());
+        try (FileChannel channel =
+                FileChannel.open(
+                    lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.lock()) {
+          // Another build may have listed the queue while this one was waiting for the lock
+          if (!loadShared()) {
+            fetch();
+            storeShared();
+          }
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Unable to lock {}: {}", lockFile, e.getMessage());
+        fetch();
+      }
+    }
+  }
+
+  /** @return whether the shared file holds a listing that is recent enough */
+  private boolean loadShared() {
+    Properties shared = BuildBreakerCache.load(sharedFile);
+    long sharedFetchedAt;
+    try {
+      sharedFetchedAt = Long.parseLong(shared.getProperty(FETCHED_AT_KEY, ""));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (System.currentTimeMillis() - sharedFetchedAt > maxAge) {
+      return false;
+    }
+    Map<String, TaskStatus> tasks = new HashMap<>();
+    for (String task :
+        Splitter.on(',').omitEmptyStrings().split(shared.getProperty(TASKS_KEY, ""))) {
+      List<String> idAndStatus = Splitter.on(':').splitToList(task);
+      try {
+        tasks.put(idAndStatus.get(0), TaskStatus.valueOf(idAndStatus.get(1)));
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        LOGGER.debug("Ignoring invalid task '{}' in {}", task, sharedFile);
+      }
+    }
+    currentTasks = tasks;
+    fetchedAt = sharedFetchedAt;
+    supported = Boolean.parseBoolean(shared.getProperty(SUPPORTED_KEY));
+    complete = Boolean.parseBoolean(shared.getProperty(COMPLETE_KEY));
+    return true;
+  }
+
+  private void storeShared() {
+    List<String> tasks = new ArrayList<>(currentTasks.size());
+    currentTasks.forEach((id, status) -> tasks.add(id + ":" + status));
+    Properties shared = new Properties();
+    shared.setProperty(FETCHED_AT_KEY, Long.toString(fetchedAt));
+    shared.setProperty(SUPPORTED_KEY, Boolean.toString(supported));
+    shared.setProperty(COMPLETE_KEY, Boolean.toString(complete));
+    shared.setProperty(TASKS_KEY, Joiner.on(',').join(tasks));
+    BuildBreakerCache.store(sharedFile, shared);
+  }
+
+  private void fetch() {
+    WsRequest request =
+        new GetRequest("api/ce/activity")
+            .setParam("status", TaskStatus.PENDING + "," + TaskStatus.IN_PROGRESS)
+            .setParam("ps", PAGE_SIZE)
+            .setMediaType(MediaTypes.PROTOBUF);
+    WsResponse wsResponse = wsConnector.call(request);
+    fetchedAt = System.currentTimeMillis();
+
+    if (!wsResponse.isSuccessful()) {
+      // 401/403 will not change during the build, other errors might
+      supported = wsResponse.code() != 401 && wsResponse.code() != 403;
+      complete = false;
+      LOGGER.debug(
+          "Unable to list the Compute Engine queue (HTTP {}), querying tasks individually",
+          wsResponse.code());
+      return;
+    }
+
+    try {
+      ActivityResponse activity = ActivityResponse.parseFrom(wsResponse.contentStream());
+      Map<String, TaskStatus> tasks = new HashMap<>();
+      for (Task task : activity.getTasksList()) {
+        tasks.put(task.getId(), task.getStatus());
+      }
+      currentTasks = tasks;
+      // A full page may hide further tasks, so absence from it proves nothing
+      complete = activity.getTasksCount() < PAGE_SIZE;
+    } catch (IOException e) {
+      LOGGER.debug("Unable to parse the Compute Engine queue: {}", e.getMessage());
+      complete = false;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.client.PostRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * Cancels the Compute Engine task of a quality gate check that gives up waiting, e.g. when it times
+ * out or is interrupted, or when the JVM shuts down because the CI server aborted the build, so
+ * that the server does not process a report nobody will look at.
+ *
+ * <p>Only a pending task can be canceled, and canceling requires the 'Administer' permission on the
+ * project, so this is a best effort which never fails the build.
+ */
+final class CeTaskCancellation implements AutoCloseable {
+
+  private static final Logger LOGGER = Loggers.get(CeTaskCancellation.class);
+
+  // The cancellation may run while the JVM shuts down, which must not be held up for long
+  static final long CANCEL_TIMEOUT = 5000;
+
+  private static final CeTaskCancellation NONE = new CeTaskCancellation(null, null, null);
+
+  private final Configuration config;
+  private final String serverUrl;
+  private final String ceTaskId;
+  private final Thread shutdownHook;
+  private final AtomicBoolean done = new AtomicBoolean();
+
+  private CeTaskCancellation(Configuration config, String serverUrl, String ceTaskId) {
+    this.config = config;
+    this.serverUrl = serverUrl;
+    this.ceTaskId = ceTaskId;
+    this.shutdownHook =
+        ceTaskId == null
+            ? null
+            : new Thread(() -> cancel("the build was aborted"), "buildbreaker-ce-cancel");
+  }
+
+  /**
+   * Cancels the task if the JVM shuts down before {@link #close()}, unless {@link
+   * BuildBreakerPlugin#CANCEL_ON_ABORT_KEY} is disabled.
+   */
+  static CeTaskCancellation register(Configuration config, String serverUrl, String ceTaskId) {
+    if (!config.getBoolean(BuildBreakerPlugin.CANCEL_ON_ABORT_KEY).orElse(false)
+        || ceTaskId == null
+        || ceTaskId.isEmpty()) {
+      return NONE;
+    }
+    CeTaskCancellation cancellation = new CeTaskCancellation(config, serverUrl, ceTaskId);
+    try {
+      Runtime.getRuntime().addShutdownHook(cancellation.shutdownHook);
+    } catch (IllegalStateException e) {
+      // The JVM is already shutting down
+      cancellation.cancel("the build was aborted");
+    }
+    return cancellation;
+  }
+
+  /** Cancels the task, unless it has already been canceled or the check is over. */
+  void cancel(String reason) {
+    if (ceTaskId == null || !done.compareAndSet(false, true)) {
+      return;
+    }
+    LOGGER.info("Canceling report processing task {} since {}", ceTaskId, reason);
+    try {
+      // The check's own deadline may have passed already
+      WsResponse response =
+          new PooledHttpConnector(serverUrl, config, Deadline.after(CANCEL_TIMEOUT), null)
+              .call(new PostRequest("api/ce/cancel").setParam("id", ceTaskId));
+      if (!response.isSuccessful()) {
+        LOGGER.warn(
+            "Unable to cancel report processing task {}: HTTP {}", ceTaskId, response.code());
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Unable to cancel report processing task {}: {}", ceTaskId, e.getMessage());
+    }
+  }
+
+  /** Ends the check, after which the task is no longer canceled. */
+  @Override
+  public void close() {
+    if (shutdownHook == null) {
+      return;
+    }
+    done.set(true);
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // The JVM is already shutting down
+    }
+  }
+}
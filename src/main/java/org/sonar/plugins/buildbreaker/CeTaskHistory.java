@@ -0,0 +1,200 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Ce.Task;
+
+/**
+ * Rolling history of the Compute Engine queue and execution durations of a project on a server,
+ * used to predict when the next report will have been processed.
+ */
+final class CeTaskHistory {
+
+  private static final Logger LOGGER = Loggers.get(CeTaskHistory.class);
+
+  private static final String SAMPLES_KEY = "samples";
+
+  /** Never poll more often than this once the expected duration has elapsed. */
+  private static final long MIN_TOLERANCE_MS = 1000;
+
+  /** After this many queries the prediction is considered wrong and the delegate takes over. */
+  private static final int PREDICTED_ATTEMPTS = 3;
+
+  private final File file;
+  private final int size;
+  // Each sample is {queue time, execution time} in milliseconds, oldest first
+  private final List<long[]> samples;
+
+  private CeTaskHistory(File file, int size, List<long[]> samples) {
+    this.file = file;
+    this.size = size;
+    this.samples = samples;
+  }
+
+  /**
+   * @param cacheDir the agent's cache directory
+   * @param serverUrl the server processing the reports, since the same project key may exist on
+   *     several servers
+   * @param projectKey the analysed project
+   * @param size the number of samples to keep, 0 disables the history
+   */
+  static CeTaskHistory load(File cacheDir, String serverUrl, String projectKey, int size) {
+    File file =
+        new File(
+            cacheDir,
+            "ce-history/"
+                + BuildBreakerCache.toFileName(serverUrl)
+                + "/"
+                + BuildBreakerCache.toFileName(projectKey));
+    List<long[]> samples = new ArrayList<>();
+    if (size > 0) {
+      String value = BuildBreakerCache.load(file).getProperty(SAMPLES_KEY, "");
+      for (String sample : Splitter.on(',').omitEmptyStrings().split(value)) {
+        List<String> durations = Splitter.on(':').splitToList(sample);
+        try {
+          samples.add(
+              new long[] {Long.parseLong(durations.get(0)), Long.parseLong(durations.get(1))});
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+          LOGGER.debug("Ignoring invalid CE history sample '{}' in {}", sample, file);
+        }
+      }
+    }
+    return new CeTaskHistory(file, size, samples);
+  }
+
+  int sampleCount() {
+    return samples.size();
+  }
+
+  /** @return the median execution time of the recorded tasks, or -1 if there is none */
+  long medianExecutionTime() {
+    if (samples.isEmpty()) {
+      return -1;
+    }
+    List<Long> executionTimes = new ArrayList<>(samples.size());
+    for (long[] sample : samples) {
+      executionTimes.add(sample[1]);
+    }
+    return percentile(executionTimes, 50);
+  }
+
+  /**
+   * Adds the durations of a successfully processed task and persists the history. Tasks without
+   * timing information are ignored.
+   */
+  void record(Task task) {
+    long queueTime = queueTime(task);
+    if (size <= 0 || queueTime < 0 || !task.hasExecutionTimeMs()) {
+      return;
+    }
+    add(queueTime, task.getExecutionTimeMs());
+
+    List<String> values = new ArrayList<>(samples.size());
+    for (long[] sample : samples) {
+      values.add(sample[0] + ":" + sample[1]);
+    }
+    Properties properties = new Properties();
+    properties.setProperty(SAMPLES_KEY, Joiner.on(',').join(values));
+    BuildBreakerCache.store(file, properties);
+  }
+
+  /** @return the milliseconds the task waited in the queue, or -1 if unknown */
+  static long queueTime(Task task) {
+    if (!task.hasSubmittedAt() || !task.hasStartedAt()) {
+      return -1;
+    }
+    Date submittedAt = DateUtils.parseDateTimeQuietly(task.getSubmittedAt());
+    Date startedAt = DateUtils.parseDateTimeQuietly(task.getStartedAt());
+    if (submittedAt == null || startedAt == null) {
+      return -1;
+    }
+    return Math.max(0, startedAt.getTime() - submittedAt.getTime());
+  }
+
+  @VisibleForTesting
+  void add(long queueTime, long executionTime) {
+    samples.add(new long[] {queueTime, executionTime});
+    while (samples.size() > size) {
+      samples.remove(0);
+    }
+  }
+
+  /**
+   * Wraps a polling strategy so that the first query happens once the median queue and execution
+   * time has elapsed, and the next few queries are spaced by the usual spread of the total
+   * duration. If the task is still not done by then, the delegate's intervals apply again.
+   *
+   * @return {@code delegate} itself if there is no history yet
+   */
+  PollingStrategy predict(PollingStrategy delegate) {
+    if (samples.isEmpty()) {
+      return delegate;
+    }
+    List<Long> totals = new ArrayList<>(samples.size());
+    List<Long> queueTimes = new ArrayList<>(samples.size());
+    List<Long> executionTimes = new ArrayList<>(samples.size());
+    for (long[] sample : samples) {
+      queueTimes.add(sample[0]);
+      executionTimes.add(sample[1]);
+      totals.add(sample[0] + sample[1]);
+    }
+    long expected = percentile(queueTimes, 50) + percentile(executionTimes, 50);
+    long tolerance = Math.max(MIN_TOLERANCE_MS, percentile(totals, 90) - percentile(totals, 50));
+    LOGGER.debug(
+        "Expecting report processing to take {} ms (+/- {} ms) based on {} previous tasks",
+        expected,
+        tolerance,
+        samples.size());
+
+    return new PollingStrategy() {
+      @Override
+      public long initialDelay() {
+        return expected;
+      }
+
+      @Override
+      public long nextDelay(int attempt) {
+        long delay = delegate.nextDelay(attempt);
+        return attempt < PREDICTED_ATTEMPTS ? Math.min(delay, tolerance) : delay;
+      }
+    };
+  }
+
+  /** Nearest-rank percentile. */
+  @VisibleForTesting
+  static long percentile(List<Long> values, int percentile) {
+    List<Long> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Ce.ActivityResponse;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.PostRequest;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * Cancels the pending Compute Engine tasks of the same project, branch and pull request that were
+ * submitted before the task of the analysis, since their reports will be outdated by the time they
+ * are processed. The builds waiting for them then fail with a {@code CANCELED} task.
+ *
+ * <p>Listing the tasks of a project and canceling them require the 'Administer' permission on the
+ * project. This is a best effort which never fails the build by itself, but still gives up the
+ * check when its deadline is exceeded or the circuit breaker of the server is open.
+ */
+final class CeTaskSupersession {
+
+  private static final Logger LOGGER = Loggers.get(CeTaskSupersession.class);
+
+  static final int PAGE_SIZE = 1000;
+
+  private CeTaskSupersession() {
+    // Utility class
+  }
+
+  /**
+   * @param ceTaskId the task of the analysis, which is left alone
+   * @return the ids of the canceled tasks
+   * @throws DeadlineExceededException if the deadline of the check is exceeded
+   * @throws CircuitOpenException if the server is known to be unavailable
+   */
+  static List<String> supersede(WsConnector wsConnector, String ceTaskId) {
+    try {
+      Task task =
+          TaskResponse.parseFrom(
+                  call(wsConnector, new GetRequest("api/ce/task").setParam("id", ceTaskId))
+                      .contentStream())
+              .getTask();
+      if (task.getStatus() != TaskStatus.PENDING) {
+        // The tasks of a project are processed in order, so the older ones are done already
+        LOGGER.debug("Task {} is {}, no outdated task to cancel", ceTaskId, task.getStatus());
+        return Collections.emptyList();
+      }
+
+      ActivityResponse activity =
+          ActivityResponse.parseFrom(
+              call(
+                      wsConnector,
+                      new GetRequest("api/ce/activity")
+                          .setParam("componentId", task.getComponentId())
+                          .setParam("status", TaskStatus.PENDING.name())
+                          .setParam("ps", PAGE_SIZE))
+                  .contentStream());
+      List<String> canceled = new ArrayList<>();
+      for (Task pending : activity.getTasksList()) {
+        if (isSupersededBy(pending, task) && cancel(wsConnector, pending.getId())) {
+          canceled.add(pending.getId());
+        }
+      }
+      if (!canceled.isEmpty()) {
+        LOGGER.info(
+            "Canceled {} outdated report processing tasks of {}: {}",
+            canceled.size(),
+            task.getComponentKey(),
+            String.join(", ", canceled));
+      }
+      return canceled;
+    } catch (DeadlineExceededException | CircuitOpenException e) {
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Unable to cancel the outdated report processing tasks: {}", e.getMessage());
+      return Collections.emptyList();
+    }
+  }
+
+  private static boolean isSupersededBy(Task pending, Task task) {
+    if (pending.getId().equals(task.getId())
+        || pending.getStatus() != TaskStatus.PENDING
+        || !pending.getType().equals(task.getType())
+        || !pending.getComponentId().equals(task.getComponentId())
+        || !pending.getBranch().equals(task.getBranch())
+        || !Objects.equals(branchType(pending), branchType(task))
+        || !pending.getPullRequest().equals(task.getPullRequest())) {
+      return false;
+    }
+    Date submittedAt = DateUtils.parseDateTimeQuietly(pending.getSubmittedAt());
+    Date taskSubmittedAt = DateUtils.parseDateTimeQuietly(task.getSubmittedAt());
+    // A task submitted in the same second may be the newer one
+    return submittedAt != null && taskSubmittedAt != null && submittedAt.before(taskSubmittedAt);
+  }
+
+  private static Object branchType(Task task) {
+    return task.hasBranchType() ? task.getBranchType() : null;
+  }
+
+  private static boolean cancel(WsConnector wsConnector, String ceTaskId) {
+    WsResponse response =
+        wsConnector.call(new PostRequest("api/ce/cancel").setParam("id", ceTaskId));
+    if (!response.isSuccessful()) {
+      LOGGER.warn("Unable to cancel outdated task {}: HTTP {}", ceTaskId, response.code());
+    }
+    return response.isSuccessful();
+  }
+
+  private static WsResponse call(WsConnector wsConnector, GetRequest request) {
+    WsResponse response = wsConnector.call(request.setMediaType(MediaTypes.PROTOBUF));
+    if (!response.isSuccessful()) {
+      throw new IllegalStateException("HTTP " + response.code() + " on " + response.requestUrl());
+    }
+    return response;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.function.Function;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * A circuit breaker around the web service requests to one server, whose state is shared by all the
+ * builds running on the same agent through a file in the {@link BuildBreakerCache} directory.
+ *
+ * <p>The circuit opens when at least {@link BuildBreakerPlugin#CIRCUIT_FAILURE_RATE_KEY} percent of
+ * the last {@link #WINDOW_SIZE} requests failed, i.e. could not be sent, got a 5xx or 429 response,
+ * or took longer than {@link BuildBreakerPlugin#CIRCUIT_SLOW_REQUEST_KEY}. While it is open,
+ * requests fail right away with a {@link CircuitOpenException} instead of adding load to an
+ * overloaded server. After {@link BuildBreakerPlugin#CIRCUIT_OPEN_DURATION_KEY} it is half-open: a
+ * single probe request, from whichever build comes first, is let through and closes the circuit if
+ * it succeeds or opens it again if it fails.
+ */
+final class CircuitBreaker {
+
+  private static final Logger LOGGER = Loggers.get(CircuitBreaker.class);
+
+  static final int WINDOW_SIZE = 20;
+
+  static final int MINIMUM_REQUESTS = 5;
+
+  private static final String STATE_KEY = "state";
+
+  private static final String OUTCOMES_KEY = "outcomes";
+
+  private static final String OPENED_AT_KEY = "openedAt";
+
+  private static final String PROBE_UNTIL_KEY = "probeUntil";
+
+  private static final String CLOSED = "closed";
+
+  private static final String OPEN = "open";
+
+  private static final String HALF_OPEN = "halfOpen";
+
+  private static final char SUCCESS = '+';
+
+  private static final char FAILURE = '-';
+
+  // File locks are held by the whole JVM, so its own threads have to be serialized separately
+  private static final Object JVM_LOCK = new Object();
+
+  private final String serverUrl;
+  private final File stateFile;
+  private final File lockFile;
+  private final int failureRate;
+  private final long slowRequest;
+  private final long openDuration;
+
+  private CircuitBreaker(String serverUrl, Configuration config) {
+    this.serverUrl = serverUrl;
+    File directory = new File(BuildBreakerCache.getDirectory(config), "circuits");
+    String fileName = BuildBreakerCache.toFileName(serverUrl);
+    this.stateFile = new File(directory, fileName + ".properties");
+    this.lockFile = new File(directory, fileName + ".lock");
+    this.failureRate = config.getInt(BuildBreakerPlugin.CIRCUIT_FAILURE_RATE_KEY).orElse(100);
+    this.slowRequest = config.getLong(BuildBreakerPlugin.CIRCUIT_SLOW_REQUEST_KEY).orElse(0L);
+    this.openDuration = config.getLong(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY).orElse(0L);
+  }
+
+  /** @return the circuit breaker of the server, or {@code null} if it is disabled */
+  static CircuitBreaker fromConfig(String serverUrl, Configuration config) {
+    return config.getBoolean(BuildBreakerPlugin.CIRCUIT_BREAKER_KEY).orElse(false)
+        ? new CircuitBreaker(serverUrl, config)
+        : null;
+  }
+
+  /**
+   * Asks for the permission to send a request.
+   *
+   * @return whether the request is the probe of a half-open circuit
+   * @throws CircuitOpenException if the circuit is open, or half-open and already being probed
+   */
+  boolean acquire() {
+    return update(
+        state -> {
+          long now = System.currentTimeMillis();
+          switch (state.getProperty(STATE_KEY, CLOSED)) {
+            case OPEN:
+              long retryAt = parseLong(state.getProperty(OPENED_AT_KEY)) + openDuration;
+              if (now < retryAt) {
+                throw new CircuitOpenException(
+                    "Circuit open for "
+                        + serverUrl
+                        + " after too many failed or slow requests, not retrying before "
+                        + Instant.ofEpochMilli(retryAt));
+              }
+              LOGGER.info("Circuit half-open for {}, probing the server", serverUrl);
+              return startProbe(state, now);
+            case HALF_OPEN:
+              if (now < parseLong(state.getProperty(PROBE_UNTIL_KEY))) {
+                throw new CircuitOpenException(
+                    "Circuit half-open for " + serverUrl + ", another build is probing the server");
+              }
+              // The previous probe never completed, e.g. its build was killed
+              return startProbe(state, now);
+            default:
+              return false;
+          }
+        });
+  }
+
+  /** @return whether a request that took {@code millis} counts as failed */
+  boolean isSlow(long millis) {
+    return slowRequest > 0 && millis >= slowRequest;
+  }
+
+  /**
+   * Records the outcome of a request allowed by {@link #acquire()}.
+   *
+   * @param probe the value returned by {@link #acquire()}
+   */
+  void record(boolean probe, boolean failed) {
+    update(
+        state -> {
+          long now = System.currentTimeMillis();
+          if (probe) {
+            if (failed) {
+              open(state, now);
+              LOGGER.warn(
+                  "{} Probe request to {} failed, circuit open again for {} ms",
+                  BuildBreakerPlugin.LOG_STAMP,
+                  serverUrl,
+                  openDuration);
+            } else {
+              state.clear();
+              LOGGER.info("Circuit closed for {}, the server has recovered", serverUrl);
+            }
+          } else if (CLOSED.equals(state.getProperty(STATE_KEY, CLOSED))) {
+            String outcomes = state.getProperty(OUTCOMES_KEY, "") + (failed ? FAILURE : SUCCESS);
+            if (outcomes.length() > WINDOW_SIZE) {
+              outcomes = outcomes.substring(outcomes.length() - WINDOW_SIZE);
+            }
+            state.setProperty(OUTCOMES_KEY, outcomes);
+            long failures = outcomes.chars().filter(c -> c == FAILURE).count();
+            if (outcomes.length() >= MINIMUM_REQUESTS
+                && failures * 100 >= (long) failureRate * outcomes.length()) {
+              open(state, now);
+              LOGGER.warn(
+                  "{} {} of the last {} requests to {} failed or were slow, circuit open for {} ms",
+                  BuildBreakerPlugin.LOG_STAMP,
+                  failures,
+                  outcomes.length(),
+                  serverUrl,
+                  openDuration);
+            }
+          }
+          return null;
+        });
+  }
+
+  private boolean startProbe(Properties state, long now) {
+    state.setProperty(STATE_KEY, HALF_OPEN);
+    // Other builds wait for the probe as long as they would have waited for the open circuit
+    state.setProperty(PROBE_UNTIL_KEY, Long.toString(now + Math.max(openDuration, 1)));
+    return true;
+  }
+
+  private static void open(Properties state, long now) {
+    state.setProperty(STATE_KEY, OPEN);
+    state.setProperty(OPENED_AT_KEY, Long.toString(now));
+    state.remove(OUTCOMES_KEY);
+    state.remove(PROBE_UNTIL_KEY);
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return value == null ? 0 : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Reads, changes and writes the state while holding the lock of the state file. Like the rest of
+   * the cache, the state file is best effort: if it cannot be locked, the circuit stays closed.
+   */
+  private <T> T update(Function<Properties, T> change) {
+    synchronized (JVM_LOCK) {
+      try {
+        Files.createDirectories(lockFile.getAbsoluteFile().getParentFile().toPath());
+        try (FileChannel channel =
+                FileChannel.open(
+                    lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.lock()) {
+          Properties state = BuildBreakerCache.load(stateFile);
+          Properties before = new Properties();
+          before.putAll(state);
+          T result = change.apply(state);
+          if (!state.equals(before)) {
+            BuildBreakerCache.store(stateFile, state);
+          }
+          return result;
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Unable to lock {}: {}", lockFile, e.getMessage());
+        return change.apply(new Properties());
+      }
+    }
+  }
+}
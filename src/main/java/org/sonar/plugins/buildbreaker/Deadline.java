@@ -0,0 +1,101 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.concurrent.TimeUnit;
+import org.sonar.api.config.Configuration;
+
+/**
+ * The wall-clock budget of a whole quality gate check. Every wait and every request draws from the
+ * same remaining time, so that slow server responses cannot extend the check beyond its limit.
+ */
+final class Deadline {
+
+  static final String OUTCOME_FAIL = "fail";
+
+  static final String OUTCOME_WARN = "warn";
+
+  static final String OUTCOME_PASS = "pass";
+
+  private static final Deadline NONE = new Deadline(0, Long.MAX_VALUE);
+
+  private final long timeout;
+  private final long expiresAtNanos;
+
+  private Deadline(long timeout, long expiresAtNanos) {
+    this.timeout = timeout;
+    this.expiresAtNanos = expiresAtNanos;
+  }
+
+  /** @return a deadline that never expires */
+  static Deadline none() {
+    return NONE;
+  }
+
+  /** @return a deadline expiring {@code timeout} milliseconds from now */
+  static Deadline after(long timeout) {
+    return new Deadline(timeout, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+  }
+
+  /** @return the deadline of {@link BuildBreakerPlugin#TIMEOUT_KEY}, starting now */
+  static Deadline fromConfig(Configuration config) {
+    long timeout = config.getLong(BuildBreakerPlugin.TIMEOUT_KEY).orElse(0L);
+    return timeout > 0 ? after(timeout) : none();
+  }
+
+  /** @return the number of milliseconds left, or {@link Long#MAX_VALUE} if there is no deadline */
+  long remaining() {
+    if (this == NONE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+  }
+
+  boolean isExpired() {
+    return remaining() == 0;
+  }
+
+  /** @return {@code delay}, shortened so that it does not extend past the deadline */
+  long cap(long delay) {
+    return Math.min(delay, remaining());
+  }
+
+  /** @throws DeadlineExceededException if the deadline has expired */
+  void check() {
+    if (isExpired()) {
+      throw new DeadlineExceededException(timeout);
+    }
+  }
+
+  /** Sleeps for {@code delay} milliseconds, or until the deadline if it comes first. */
+  void sleep(long delay) throws InterruptedException {
+    long capped = cap(delay);
+    if (capped > 0) {
+      Thread.sleep(capped);
+    }
+    if (capped < delay) {
+      check();
+    }
+  }
+
+  long timeout() {
+    return timeout;
+  }
+}
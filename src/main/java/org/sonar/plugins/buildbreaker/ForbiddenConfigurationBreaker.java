@@ -19,8 +19,9 @@
  */
 package org.sonar.plugins.buildbreaker;
 
-import com.google.common.base.Splitter;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import org.sonar.api.batch.postjob.PostJob;
 import org.sonar.api.batch.postjob.PostJobContext;
 import org.sonar.api.batch.postjob.PostJobDescriptor;
@@ -30,7 +31,13 @@ import org.sonar.api.utils.log.Loggers;
 
 /**
  * Checks the analysis parameters for forbidden configurations. Breaks the build if at least one of
- * the comma-separated key=value configurations was found.
+ * the comma-separated key=value configurations was found, reporting all of them at once.
+ *
+ * <p>Forbidden configurations are usually already found by {@link ForbiddenConfigurationSensor}
+ * before the other sensors run. This post-job checks the project configuration once more after the
+ * analysis.
+ *
+ * @see ForbiddenConfigurationRules
  */
 public final class ForbiddenConfigurationBreaker implements PostJob {
 
@@ -43,7 +50,7 @@ public final class ForbiddenConfigurationBreaker implements PostJob {
   }
 
   public boolean shouldExecuteOnProject() {
-    return config.hasKey(BuildBreakerPlugin.FORBIDDEN_CONF_KEY);
+    return ForbiddenConfigurationPolicy.isConfigured(config);
   }
 
   @Override
@@ -54,20 +61,38 @@ public final class ForbiddenConfigurationBreaker implements PostJob {
   @Override
   public void execute(PostJobContext context) {
     if (shouldExecuteOnProject()) {
-      String[] pairs = config.getStringArray(BuildBreakerPlugin.FORBIDDEN_CONF_KEY);
-      for (String pair : pairs) {
-        List<String> split = Splitter.on('=').limit(2).splitToList(pair);
-        if (split.isEmpty()) {
-          continue;
-        }
-        String key = split.get(0);
-        String value = split.size() > 1 ? split.get(1) : "";
-        if (value.equals(config.get(key).orElse(null))) {
-          LOGGER.error("{} Forbidden configuration: {}", BuildBreakerPlugin.LOG_STAMP, pair);
-          throw new IllegalStateException(
-              "A forbidden configuration has been found on the project: " + pair);
-        }
-      }
+      ForbiddenConfigurationRules rules =
+          ForbiddenConfigurationRules.compile(ForbiddenConfigurationPolicy.rules(config));
+      List<String> violations =
+          rules.violations(
+              key -> config.get(key).orElse(null),
+              rules.hasGlobKeys() ? getPropertyKeys(context) : Collections.emptySet());
+      breakOnViolations(violations);
+    }
+  }
+
+  /** Logs every violation, then breaks the build if there is at least one. */
+  static void breakOnViolations(List<String> violations) {
+    if (violations.isEmpty()) {
+      return;
     }
+
+    for (String violation : violations) {
+      LOGGER.error("{} Forbidden configuration: {}", BuildBreakerPlugin.LOG_STAMP, violation);
+    }
+    if (violations.size() == 1) {
+      throw new IllegalStateException(
+          "A forbidden configuration has been found on the project: " + violations.get(0));
+    }
+    throw new IllegalStateException(
+        violations.size()
+            + " forbidden configurations have been found on the project: "
+            + String.join(", ", violations));
+  }
+
+  // Configuration cannot list its keys, which glob keys need
+  @SuppressWarnings("deprecation")
+  private static Set<String> getPropertyKeys(PostJobContext context) {
+    return context.settings().getProperties().keySet();
   }
 }
@@ -0,0 +1,217 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Properties;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Forbidden configuration rules shared by many projects, read from the file or HTTP(S) URL set in
+ * {@link BuildBreakerPlugin#FORBIDDEN_CONF_POLICY_KEY}. The policy holds one {@code key=value} rule
+ * per line, with the syntax of {@link BuildBreakerPlugin#FORBIDDEN_CONF_KEY}; blank lines and lines
+ * starting with {@code #} are ignored.
+ *
+ * <p>A downloaded policy is cached on the agent and only revalidated with its {@code ETag} and
+ * {@code Last-Modified} headers once older than {@link
+ * BuildBreakerPlugin#FORBIDDEN_CONF_POLICY_TTL_KEY}. If {@link
+ * BuildBreakerPlugin#FORBIDDEN_CONF_POLICY_SHA256_KEY} is set, a policy with another SHA-256 digest
+ * is rejected. No credentials are sent to the policy server.
+ */
+final class ForbiddenConfigurationPolicy {
+
+  private static final Logger LOGGER = Loggers.get(ForbiddenConfigurationPolicy.class);
+
+  private static final String COMMENT_PREFIX = "#";
+
+  private static final String CONTENT_KEY = "content";
+
+  private static final String SHA256_KEY = "sha256";
+
+  private static final String ETAG_KEY = "etag";
+
+  private static final String LAST_MODIFIED_KEY = "lastModified";
+
+  private ForbiddenConfigurationPolicy() {
+    // Utility class
+  }
+
+  /**
+   * @return the rules of {@link BuildBreakerPlugin#FORBIDDEN_CONF_KEY} followed by those of the
+   *     policy, if any
+   * @throws IllegalStateException if the policy cannot be read or does not have the expected digest
+   */
+  static String[] rules(Configuration config) {
+    List<String> rules =
+        new ArrayList<>(
+            Arrays.asList(config.getStringArray(BuildBreakerPlugin.FORBIDDEN_CONF_KEY)));
+    Optional<String> source =
+        config.get(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_KEY).filter(s -> !s.isEmpty());
+    if (source.isPresent()) {
+      rules.addAll(parse(load(config, source.get())));
+    }
+    return rules.toArray(new String[0]);
+  }
+
+  /** @return whether forbidden configurations are configured at all */
+  static boolean isConfigured(Configuration config) {
+    return config.hasKey(BuildBreakerPlugin.FORBIDDEN_CONF_KEY)
+        || config.hasKey(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_KEY);
+  }
+
+  static List<String> parse(String policy) {
+    List<String> rules = new ArrayList<>();
+    for (String line : policy.split("\\r?\\n")) {
+      String rule = line.trim();
+      if (!rule.isEmpty() && !rule.startsWith(COMMENT_PREFIX)) {
+        rules.add(rule);
+      }
+    }
+    return rules;
+  }
+
+  private static String load(Configuration config, String source) {
+    String expectedSha256 =
+        config
+            .get(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_SHA256_KEY)
+            .orElse("")
+            .toLowerCase(Locale.ROOT);
+    if (!source.startsWith("http://") && !source.startsWith("https://")) {
+      try {
+        return verify(
+            source,
+            new String(Files.readAllBytes(new File(source).toPath()), StandardCharsets.UTF_8),
+            expectedSha256);
+      } catch (IOException e) {
+        throw new IllegalStateException(
+            "Unable to read the forbidden configuration policy " + source, e);
+      }
+    }
+
+    File cacheFile =
+        new File(
+            BuildBreakerCache.getDirectory(config),
+            "policies/" + BuildBreakerCache.toPrivateFileName(source));
+    Properties cached = BuildBreakerCache.load(cacheFile);
+    String content = cached.getProperty(CONTENT_KEY);
+    // A corrupted cache, or one holding another version than the expected one, is not used
+    if (content == null
+        || !sha256(content).equals(cached.getProperty(SHA256_KEY))
+        || !(expectedSha256.isEmpty() || expectedSha256.equals(cached.getProperty(SHA256_KEY)))) {
+      cached.clear();
+      content = null;
+    }
+    long ttl = config.getLong(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_TTL_KEY).orElse(0L);
+    if (content != null && System.currentTimeMillis() - cacheFile.lastModified() < ttl) {
+      LOGGER.debug("Using the cached forbidden configuration policy {}", source);
+      return content;
+    }
+
+    Request.Builder request = new Request.Builder().url(source);
+    if (cached.containsKey(ETAG_KEY)) {
+      request.header("If-None-Match", cached.getProperty(ETAG_KEY));
+    }
+    if (cached.containsKey(LAST_MODIFIED_KEY)) {
+      request.header("If-Modified-Since", cached.getProperty(LAST_MODIFIED_KEY));
+    }
+    // Unlike the server, the host of a policy may redirect, e.g. to a CDN
+    OkHttpClient client =
+        PooledHttpConnector.newClientBuilder(config)
+            .followRedirects(true)
+            .followSslRedirects(true)
+            .build();
+    try (Response response = client.newCall(request.build()).execute()) {
+      if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED && content != null) {
+        LOGGER.debug("The forbidden configuration policy {} has not changed", source);
+        // Storing the same content again restarts the TTL
+        BuildBreakerCache.store(cacheFile, cached);
+        return content;
+      }
+      if (!response.isSuccessful()) {
+        throw new IOException("HTTP " + response.code());
+      }
+      ResponseBody body = response.body();
+      String downloaded = verify(source, body == null ? "" : body.string(), expectedSha256);
+      Properties policy = new Properties();
+      policy.setProperty(CONTENT_KEY, downloaded);
+      policy.setProperty(SHA256_KEY, sha256(downloaded));
+      copyHeader(response, "ETag", policy, ETAG_KEY);
+      copyHeader(response, "Last-Modified", policy, LAST_MODIFIED_KEY);
+      BuildBreakerCache.store(cacheFile, policy);
+      LOGGER.info(
+          "Downloaded the forbidden configuration policy {} (SHA-256 {})",
+          source,
+          policy.getProperty(SHA256_KEY));
+      return downloaded;
+    } catch (IOException e) {
+      if (content != null) {
+        LOGGER.warn(
+            "Unable to revalidate the forbidden configuration policy {}, using the cached one: {}",
+            source,
+            e.getMessage());
+        return content;
+      }
+      throw new IllegalStateException(
+          "Unable to download the forbidden configuration policy " + source + ": " + e.getMessage(),
+          e);
+    }
+  }
+
+  private static void copyHeader(
+      Response response, String header, Properties properties, String key) {
+    String value = response.header(header);
+    if (value != null) {
+      properties.setProperty(key, value);
+    }
+  }
+
+  private static String verify(String source, String content, String expectedSha256) {
+    if (!expectedSha256.isEmpty() && !expectedSha256.equals(sha256(content))) {
+      throw new IllegalStateException(
+          "The forbidden configuration policy "
+              + source
+              + " does not have the expected SHA-256 digest "
+              + expectedSha256
+              + ", check "
+              + BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_SHA256_KEY);
+    }
+    return content;
+  }
+
+  static String sha256(String content) {
+    return Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+  }
+}
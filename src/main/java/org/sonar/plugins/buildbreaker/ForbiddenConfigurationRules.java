@@ -0,0 +1,206 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+/**
+ * Forbidden configuration rules compiled into an indexed matcher. Each rule is a {@code key=value}
+ * pair, where:
+ *
+ * <ul>
+ *   <li>the key is either an exact property key, looked up by hash, or a glob pattern with {@code
+ *       *} and {@code ?} wildcards if it starts with {@code glob:};
+ *   <li>the value is either the exact forbidden value, or a regular expression the whole value must
+ *       match if it starts with {@code regex:}, e.g. {@code
+ *       glob:sonar.exclusions*=regex:.*src/main.*}.
+ * </ul>
+ *
+ * <p>Without these prefixes, keys and values are compared as they are, so that the rules written
+ * before patterns were supported keep their meaning. The glob keys are combined into a single
+ * pattern, so that the properties matching none of them are discarded with a single test.
+ */
+final class ForbiddenConfigurationRules {
+
+  static final String GLOB_PREFIX = "glob:";
+
+  static final String REGEX_PREFIX = "regex:";
+
+  private final Map<String, List<Rule>> exactKeyRules = new LinkedHashMap<>();
+  private final List<Rule> globKeyRules = new ArrayList<>();
+  private final Pattern globKeys;
+
+  private ForbiddenConfigurationRules(String[] pairs) {
+    for (int i = 0; i < pairs.length; i++) {
+      String pair = pairs[i];
+      int separator = pair.indexOf('=');
+      String key = separator < 0 ? pair : pair.substring(0, separator);
+      String value = separator < 0 ? "" : pair.substring(separator + 1);
+      if (key.isEmpty()) {
+        continue;
+      }
+      Rule rule =
+          new Rule(
+              i,
+              pair,
+              key.startsWith(GLOB_PREFIX)
+                  ? toPattern(pair, key.substring(GLOB_PREFIX.length()))
+                  : null,
+              toValue(pair, value));
+      if (rule.key == null) {
+        exactKeyRules.computeIfAbsent(key, k -> new ArrayList<>()).add(rule);
+      } else {
+        globKeyRules.add(rule);
+      }
+    }
+    globKeys =
+        globKeyRules.isEmpty()
+            ? null
+            : Pattern.compile(
+                globKeyRules.stream().map(r -> r.key.pattern()).collect(Collectors.joining("|")));
+  }
+
+  /**
+   * @param pairs the {@code key=value} rules
+   * @throws IllegalStateException if a rule's regular expression is invalid
+   */
+  static ForbiddenConfigurationRules compile(String[] pairs) {
+    return new ForbiddenConfigurationRules(pairs);
+  }
+
+  /** @return whether some rules have a glob key, which requires all the property keys */
+  boolean hasGlobKeys() {
+    return globKeys != null;
+  }
+
+  /**
+   * Evaluates all the rules in a single pass.
+   *
+   * @param values the values of the properties, {@code null} for unset ones
+   * @param keys the keys of all the properties, only used if {@link #hasGlobKeys()}
+   * @return every violated rule, in the order of the rules; for glob keys, followed by the matching
+   *     property key
+   */
+  List<String> violations(Function<String, String> values, Collection<String> keys) {
+    List<Violation> violations = new ArrayList<>();
+    for (Map.Entry<String, List<Rule>> entry : exactKeyRules.entrySet()) {
+      String value = values.apply(entry.getKey());
+      if (value != null) {
+        for (Rule rule : entry.getValue()) {
+          if (rule.value.matcher(value).matches()) {
+            violations.add(new Violation(rule.index, rule.pair));
+          }
+        }
+      }
+    }
+    if (globKeys != null) {
+      for (String key : new TreeSet<>(keys)) {
+        if (!globKeys.matcher(key).matches()) {
+          continue;
+        }
+        String value = values.apply(key);
+        for (Rule rule : globKeyRules) {
+          if (value != null
+              && rule.key.matcher(key).matches()
+              && rule.value.matcher(value).matches()) {
+            violations.add(new Violation(rule.index, rule.pair + " (" + key + ")"));
+          }
+        }
+      }
+    }
+    if (violations.isEmpty()) {
+      return Collections.emptyList();
+    }
+    violations.sort((a, b) -> Integer.compare(a.index, b.index));
+    return violations.stream().map(v -> v.description).collect(Collectors.toList());
+  }
+
+  private static Pattern toPattern(String pair, String glob) {
+    StringBuilder regex = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (char c : glob.toCharArray()) {
+      if (c == '*' || c == '?') {
+        if (literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        regex.append(c == '*' ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return compilePattern(pair, regex.toString());
+  }
+
+  private static Pattern toValue(String pair, String value) {
+    if (value.startsWith(REGEX_PREFIX)) {
+      return compilePattern(pair, value.substring(REGEX_PREFIX.length()));
+    }
+    return Pattern.compile(value, Pattern.LITERAL);
+  }
+
+  private static Pattern compilePattern(String pair, String regex) {
+    try {
+      // Non-capturing groups keep the combined pattern of glob keys valid
+      return Pattern.compile("(?:" + regex + ")");
+    } catch (PatternSyntaxException e) {
+      throw new IllegalStateException(
+          "Invalid forbidden configuration " + pair + ": " + e.getDescription(), e);
+    }
+  }
+
+  private static final class Rule {
+    private final int index;
+    private final String pair;
+    // null for an exact key
+    private final Pattern key;
+    private final Pattern value;
+
+    Rule(int index, String pair, Pattern key, Pattern value) {
+      this.index = index;
+      this.pair = pair;
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  private static final class Violation {
+    private final int index;
+    private final String description;
+
+    Violation(int index, String description) {
+      this.index = index;
+      this.description = description;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.Collections;
+import java.util.Set;
+import org.sonar.api.batch.Phase;
+import org.sonar.api.batch.sensor.Sensor;
+import org.sonar.api.batch.sensor.SensorContext;
+import org.sonar.api.batch.sensor.SensorDescriptor;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Checks the configuration of each module for forbidden configurations before the other sensors
+ * run, i.e. before any file is analysed and anything is sent to the server.
+ *
+ * <p>The rules are read from the module's configuration and from the policy it references (see
+ * {@link ForbiddenConfigurationPolicy}). {@link ForbiddenConfigurationBreaker} checks the project
+ * configuration again after the analysis.
+ */
+@Phase(name = Phase.Name.PRE)
+public final class ForbiddenConfigurationSensor implements Sensor {
+
+  private static final Logger LOGGER = Loggers.get(ForbiddenConfigurationSensor.class);
+
+  @Override
+  public void describe(SensorDescriptor descriptor) {
+    descriptor
+        .name("Forbidden Configuration Check")
+        .onlyWhenConfiguration(ForbiddenConfigurationPolicy::isConfigured);
+  }
+
+  @Override
+  public void execute(SensorContext context) {
+    Configuration config = context.config();
+    String[] pairs = ForbiddenConfigurationPolicy.rules(config);
+    if (pairs.length == 0) {
+      return;
+    }
+    LOGGER.debug("Checking forbidden configurations before the analysis");
+
+    ForbiddenConfigurationRules rules = ForbiddenConfigurationRules.compile(pairs);
+    ForbiddenConfigurationBreaker.breakOnViolations(
+        rules.violations(
+            key -> config.get(key).orElse(null),
+            rules.hasGlobKeys() ? getPropertyKeys(context) : Collections.emptySet()));
+  }
+
+  // Configuration cannot list its keys, which glob keys need
+  @SuppressWarnings("deprecation")
+  private static Set<String> getPropertyKeys(SensorContext context) {
+    return context.settings().getProperties().keySet();
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+
+/**
+ * Where the time of one quality gate check went: waiting in and being processed by the Compute
+ * Engine, polling, individual web service requests and the quality gate request itself.
+ *
+ * <p>Requests may be recorded from several threads; the other figures are recorded by the thread
+ * running the check.
+ */
+final class GateCheckMetrics {
+
+  static final String JSON_FILE_NAME = "buildbreaker-metrics.json";
+
+  static final String PASSED = "PASSED";
+
+  static final String FAILED = "FAILED";
+
+  /** The check could not tell whether the gate passes, e.g. the report processing failed */
+  static final String ERROR = "ERROR";
+
+  static final String TIMED_OUT = "TIMED_OUT";
+
+  static final String CIRCUIT_OPEN = "CIRCUIT_OPEN";
+
+  static final String SOURCE_POLLING = "polling";
+
+  static final String SOURCE_WEBHOOK = "webhook";
+
+  static final String SOURCE_RESULT_CACHE = "result cache";
+
+  static final String SOURCE_UPSTREAM = "upstream";
+
+  private static final String CE_TASK_PATH = "api/ce/task";
+
+  private final String projectKey;
+  private final String ceTaskId;
+  private final String dashboardUrl;
+  private final long startedAt = System.currentTimeMillis();
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicInteger polls = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicLong requestTime = new AtomicLong();
+  private final AtomicLong maxRequestTime = new AtomicLong();
+
+  private String source = SOURCE_POLLING;
+  private long ceQueueTime = -1;
+  private long ceExecutionTime = -1;
+  private long waitTime;
+  private long qualityGateTime;
+  private long totalTime = -1;
+  private String outcome;
+  private String message;
+  private String analysisId;
+  private ProjectStatus projectStatus;
+  private MetricNames metricNames = MetricNames.CORE;
+
+  GateCheckMetrics(Properties reportTaskProps) {
+    this.projectKey = reportTaskProps.getProperty("projectKey", "");
+    this.ceTaskId = reportTaskProps.getProperty("ceTaskId", "");
+    this.dashboardUrl = reportTaskProps.getProperty("dashboardUrl");
+  }
+
+  String projectKey() {
+    return projectKey;
+  }
+
+  String ceTaskId() {
+    return ceTaskId;
+  }
+
+  /** @return the project key, or the task id if the report task does not tell the project */
+  String label() {
+    return projectKey.isEmpty() ? ceTaskId : projectKey;
+  }
+
+  String dashboardUrl() {
+    return dashboardUrl;
+  }
+
+  String analysisId() {
+    return analysisId;
+  }
+
+  long totalTime() {
+    return totalTime;
+  }
+
+  void recordRequest(String path, long millis) {
+    requests.incrementAndGet();
+    requestTime.addAndGet(millis);
+    maxRequestTime.accumulateAndGet(millis, Math::max);
+    if (CE_TASK_PATH.equals(path)) {
+      polls.incrementAndGet();
+    }
+  }
+
+  void recordSource(String source) {
+    this.source = source;
+  }
+
+  void recordTask(Task task) {
+    ceQueueTime = CeTaskHistory.queueTime(task);
+    ceExecutionTime = task.hasExecutionTimeMs() ? task.getExecutionTimeMs() : -1;
+    analysisId = task.hasAnalysisId() ? task.getAnalysisId() : null;
+  }
+
+  /** @param metricNames the names of the metrics of the gate's conditions */
+  void recordProjectStatus(ProjectStatus projectStatus, MetricNames metricNames) {
+    this.projectStatus = projectStatus;
+    this.metricNames = metricNames;
+  }
+
+  /** @return the quality gate status read by the check, or {@code null} if none was */
+  ProjectStatus projectStatus() {
+    return projectStatus;
+  }
+
+  MetricNames metricNames() {
+    return metricNames;
+  }
+
+  void recordWait(long millis) {
+    waitTime += millis;
+  }
+
+  void recordQualityGate(long millis) {
+    qualityGateTime = millis;
+  }
+
+  /** @param message why the check did not pass, or {@code null} */
+  void finish(String outcome, String message) {
+    this.outcome = outcome;
+    this.message = message;
+    this.totalTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  String outcome() {
+    return outcome;
+  }
+
+  String message() {
+    return message;
+  }
+
+  /** @return a one-line summary of the check, for the build log */
+  String summary() {
+    StringBuilder summary =
+        new StringBuilder()
+            .append(label())
+            .append(": ")
+            .append(outcome)
+            .append(" in ")
+            .append(seconds(totalTime))
+            .append(" (");
+    if (ceQueueTime >= 0) {
+      summary.append("CE queue ").append(seconds(ceQueueTime)).append(", ");
+    }
+    if (ceExecutionTime >= 0) {
+      summary.append("CE execution ").append(seconds(ceExecutionTime)).append(", ");
+    }
+    summary.append("waited ").append(seconds(waitTime)).append(" via ").append(source);
+    summary.append(", ").append(polls.get()).append(" polls");
+    summary.append(", ").append(requests.get()).append(" requests");
+    if (requests.get() > 0) {
+      summary.append(" averaging ").append(requestTime.get() / requests.get()).append(" ms");
+    }
+    summary.append(", quality gate ").append(qualityGateTime).append(" ms)");
+    return summary.toString();
+  }
+
+  private static String seconds(long millis) {
+    return String.format(Locale.ENGLISH, "%.1f s", millis / 1000.0);
+  }
+
+  String toJson() {
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      writer.setIndent("  ");
+      writer.beginObject();
+      writer.name("projectKey").value(projectKey);
+      writer.name("ceTaskId").value(ceTaskId);
+      writer.name("startedAt").value(startedAt);
+      writer.name("outcome").value(outcome);
+      writeTimings(writer);
+      writer.endObject();
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return json.toString() + "\n";
+  }
+
+  /** Writes where the time of the check went, as fields of the current JSON object. */
+  void writeTimings(JsonWriter writer) throws IOException {
+    writer.name("source").value(source);
+    writer.name("totalTimeMs").value(totalTime);
+    writer.name("waitTimeMs").value(waitTime);
+    writer.name("ceQueueTimeMs").value(ceQueueTime >= 0 ? ceQueueTime : null);
+    writer.name("ceExecutionTimeMs").value(ceExecutionTime >= 0 ? ceExecutionTime : null);
+    writer.name("polls").value(polls.get());
+    writer.name("requests").value(requests.get());
+    writer.name("requestTimeMs").value(requestTime.get());
+    writer.name("maxRequestTimeMs").value(maxRequestTime.get());
+    writer.name("qualityGateTimeMs").value(qualityGateTime);
+  }
+
+  /**
+   * @return the metrics of all checks in the Prometheus text exposition format, as read by the node
+   *     exporter's textfile collector
+   */
+  static String toPrometheus(List<GateCheckMetrics> checks) {
+    StringBuilder text = new StringBuilder();
+    gauge(
+        text,
+        checks,
+        "buildbreaker_check_timestamp_seconds",
+        "Start of the check",
+        m -> m.startedAt / 1000.0);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_check_passed",
+        "1 if the project passed the quality gate",
+        m -> PASSED.equals(m.outcome) ? 1 : 0);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_check_duration_seconds",
+        "Duration of the whole check",
+        m -> m.totalTime / 1000.0);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_wait_seconds",
+        "Time spent waiting for report processing",
+        m -> m.waitTime / 1000.0);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_ce_queue_seconds",
+        "Time the report waited in the CE queue",
+        m -> m.ceQueueTime >= 0 ? m.ceQueueTime / 1000.0 : null);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_ce_execution_seconds",
+        "Time the CE took to process the report",
+        m -> m.ceExecutionTime >= 0 ? m.ceExecutionTime / 1000.0 : null);
+    gauge(text, checks, "buildbreaker_polls", "Number of CE task queries", m -> m.polls.get());
+    gauge(
+        text,
+        checks,
+        "buildbreaker_requests",
+        "Number of web service requests",
+        m -> m.requests.get());
+    gauge(
+        text,
+        checks,
+        "buildbreaker_request_seconds_sum",
+        "Total web service request time",
+        m -> m.requestTime.get() / 1000.0);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_request_seconds_max",
+        "Slowest web service request",
+        m -> m.maxRequestTime.get() / 1000.0);
+    gauge(
+        text,
+        checks,
+        "buildbreaker_quality_gate_seconds",
+        "Time of the quality gate request",
+        m -> m.qualityGateTime / 1000.0);
+    return text.toString();
+  }
+
+  private interface Value {
+    Number of(GateCheckMetrics metrics);
+  }
+
+  private static void gauge(
+      StringBuilder text, List<GateCheckMetrics> checks, String name, String help, Value value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" gauge\n");
+    for (GateCheckMetrics metrics : checks) {
+      Number number = value.of(metrics);
+      if (number != null) {
+        text.append(name)
+            .append("{project=\"")
+            .append(metrics.label().replace("\\", "\\\\").replace("\"", "\\\""))
+            .append("\"} ")
+            .append(number)
+            .append('\n');
+      }
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.base.Strings;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.File;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * Quality gate verdicts, with the details of their conditions, kept on the agent for {@link
+ * BuildBreakerPlugin#RESULT_CACHE_TTL_KEY} so that a check that has already been done is not done
+ * again:
+ *
+ * <ul>
+ *   <li>by Compute Engine task, when the same report is checked again, e.g. by a rerun of a
+ *       detached check;
+ *   <li>by project, branch and {@link BuildBreakerPlugin#REVISION_KEY}, when a CI job is rerun for
+ *       a commit that has already been analysed. Failed verdicts are not reused this way, since the
+ *       issues that failed the gate may have been resolved on the server since then.
+ * </ul>
+ *
+ * <p>At most {@link BuildBreakerPlugin#RESULT_CACHE_SIZE_KEY} verdicts are kept, the oldest ones
+ * being evicted first.
+ */
+final class GateResultCache {
+
+  private static final Logger LOGGER = Loggers.get(GateResultCache.class);
+
+  static final String BRANCH_NAME_KEY = "sonar.branch.name";
+
+  private static final String STATUS_KEY = "status";
+
+  private static final String PROJECT_STATUS_KEY = "projectStatus";
+
+  private final File directory;
+  private final long ttl;
+  private final int size;
+  private final boolean bypass;
+  private final String revision;
+  private final String branch;
+
+  private GateResultCache(Configuration config) {
+    this.directory = new File(BuildBreakerCache.getDirectory(config), "gate-results");
+    this.ttl = config.getLong(BuildBreakerPlugin.RESULT_CACHE_TTL_KEY).orElse(0L);
+    this.size = config.getInt(BuildBreakerPlugin.RESULT_CACHE_SIZE_KEY).orElse(0);
+    this.bypass = config.getBoolean(BuildBreakerPlugin.RESULT_CACHE_BYPASS_KEY).orElse(false);
+    this.revision = config.get(BuildBreakerPlugin.REVISION_KEY).orElse("");
+    this.branch = config.get(BRANCH_NAME_KEY).orElse("");
+  }
+
+  static GateResultCache fromConfig(Configuration config) {
+    return new GateResultCache(config);
+  }
+
+  /**
+   * @return the verdict of the report task, or of the same revision of the project, unless the
+   *     cache is disabled or bypassed
+   */
+  Optional<ProjectStatus> lookup(String serverUrl, Properties reportTaskProps) {
+    if (ttl <= 0 || bypass) {
+      return Optional.empty();
+    }
+    for (File file : files(serverUrl, reportTaskProps)) {
+      if (file.isFile() && System.currentTimeMillis() - file.lastModified() < ttl) {
+        try {
+          ProjectStatus projectStatus =
+              ProjectStatus.parseFrom(
+                  Base64.getDecoder()
+                      .decode(BuildBreakerCache.load(file).getProperty(PROJECT_STATUS_KEY, "")));
+          LOGGER.info("Quality gate status found in the result cache");
+          return Optional.of(projectStatus);
+        } catch (InvalidProtocolBufferException | IllegalArgumentException e) {
+          LOGGER.debug("Ignoring invalid quality gate result in {}", file);
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** Keeps the verdict of the report task, then evicts expired and extra verdicts. */
+  void store(String serverUrl, Properties reportTaskProps, ProjectStatus projectStatus) {
+    if (ttl <= 0 || size <= 0) {
+      return;
+    }
+    Properties result = new Properties();
+    result.setProperty(STATUS_KEY, projectStatus.getStatus().name());
+    result.setProperty(
+        PROJECT_STATUS_KEY, Base64.getEncoder().encodeToString(projectStatus.toByteArray()));
+    List<File> files = files(serverUrl, reportTaskProps);
+    if (Status.ERROR.equals(projectStatus.getStatus())) {
+      files = files.subList(0, Math.min(1, files.size()));
+    }
+    for (File file : files) {
+      BuildBreakerCache.store(file, result);
+    }
+    evict();
+  }
+
+  /** @return the files of the task's verdict, then of the revision's verdict if it is known */
+  private List<File> files(String serverUrl, Properties reportTaskProps) {
+    List<File> files = new ArrayList<>(2);
+    String ceTaskId = reportTaskProps.getProperty("ceTaskId");
+    if (!Strings.isNullOrEmpty(ceTaskId)) {
+      files.add(
+          new File(directory, BuildBreakerCache.toPrivateFileName(serverUrl, "task", ceTaskId)));
+    }
+    String projectKey = reportTaskProps.getProperty("projectKey");
+    if (!revision.isEmpty() && !Strings.isNullOrEmpty(projectKey)) {
+      files.add(
+          new File(
+              directory,
+              BuildBreakerCache.toPrivateFileName(
+                  serverUrl, "revision", projectKey, branch, revision)));
+    }
+    return files;
+  }
+
+  private void evict() {
+    File[] files = directory.listFiles(File::isFile);
+    if (files == null) {
+      return;
+    }
+    // Read the dates once, since other builds may update the files while they are sorted
+    List<Map.Entry<File, Long>> results = new ArrayList<>(files.length);
+    for (File file : files) {
+      results.add(new SimpleImmutableEntry<>(file, file.lastModified()));
+    }
+    results.sort(Map.Entry.<File, Long>comparingByValue().reversed());
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < results.size(); i++) {
+      File file = results.get(i).getKey();
+      if ((i >= size || now - results.get(i).getValue() >= ttl) && !file.delete()) {
+        LOGGER.debug("Unable to evict {}", file);
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Locale;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * The verdict of the quality gate checks of a build, written to {@link
+ * BuildBreakerPlugin#VERDICT_DIR_KEY} so that later CI stages (dashboards, pull request comments,
+ * release scripts) read it instead of querying the server again.
+ *
+ * <p>The JSON file holds the outcome, every condition of the gate and the timings of each check.
+ * The JUnit XML file holds one test case per project, failed if its quality gate is not passed or
+ * in error if it could not be checked, so that CI servers show the verdict along with the test
+ * results.
+ */
+final class GateVerdictReport {
+
+  static final String JSON_FILE_NAME = "buildbreaker-verdict.json";
+
+  static final String JUNIT_FILE_NAME = "TEST-buildbreaker.xml";
+
+  private static final String TEST_SUITE_NAME = "Quality Gate";
+
+  private GateVerdictReport() {
+    // Utility class
+  }
+
+  /**
+   * @return {@link GateCheckMetrics#PASSED} if all the checks passed, otherwise the first outcome
+   */
+  private static String outcome(List<GateCheckMetrics> checks) {
+    return checks.stream()
+        .map(GateCheckMetrics::outcome)
+        .filter(outcome -> !GateCheckMetrics.PASSED.equals(outcome))
+        .findFirst()
+        .orElse(GateCheckMetrics.PASSED);
+  }
+
+  static String toJson(List<GateCheckMetrics> checks) {
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      writer.setIndent("  ");
+      writer.beginObject();
+      writer.name("outcome").value(outcome(checks));
+      writer.name("projects").beginArray();
+      for (GateCheckMetrics check : checks) {
+        writer.beginObject();
+        writer.name("projectKey").value(check.projectKey());
+        writer.name("ceTaskId").value(check.ceTaskId());
+        writer.name("analysisId").value(check.analysisId());
+        writer.name("dashboardUrl").value(check.dashboardUrl());
+        writer.name("outcome").value(check.outcome());
+        writer.name("message").value(check.message());
+        ProjectStatus projectStatus = check.projectStatus();
+        writer
+            .name("status")
+            .value(projectStatus == null ? null : projectStatus.getStatus().name());
+        writer.name("conditions").beginArray();
+        if (projectStatus != null) {
+          for (Condition condition : projectStatus.getConditionsList()) {
+            writeCondition(writer, condition, check.metricNames());
+          }
+        }
+        writer.endArray();
+        writer.name("timings").beginObject();
+        check.writeTimings(writer);
+        writer.endObject();
+        writer.endObject();
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return json.toString() + "\n";
+  }
+
+  private static void writeCondition(JsonWriter writer, Condition condition, MetricNames names)
+      throws IOException {
+    writer.beginObject();
+    writer.name("status").value(condition.getStatus().name());
+    writer.name("metricKey").value(condition.getMetricKey());
+    writer.name("metricName").value(names.get(condition.getMetricKey()));
+    writer.name("comparator").value(condition.getComparator().name());
+    writer
+        .name("actualValue")
+        .value(condition.hasActualValue() ? condition.getActualValue() : null);
+    writer
+        .name("errorThreshold")
+        .value(condition.hasErrorThreshold() ? condition.getErrorThreshold() : null);
+    writer
+        .name("warningThreshold")
+        .value(condition.hasWarningThreshold() ? condition.getWarningThreshold() : null);
+    if (condition.hasPeriodIndex()) {
+      writer.name("periodIndex").value(condition.getPeriodIndex());
+    }
+    writer.endObject();
+  }
+
+  static String toJUnit(List<GateCheckMetrics> checks) {
+    StringWriter xml = new StringWriter();
+    try {
+      XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(xml);
+      writer.writeStartDocument("UTF-8", "1.0");
+      writer.writeCharacters("\n");
+      writer.writeStartElement("testsuite");
+      writer.writeAttribute("name", TEST_SUITE_NAME);
+      writer.writeAttribute("tests", Integer.toString(checks.size()));
+      writer.writeAttribute(
+          "failures",
+          Long.toString(
+              checks.stream().filter(c -> GateCheckMetrics.FAILED.equals(c.outcome())).count()));
+      writer.writeAttribute(
+          "errors",
+          Long.toString(
+              checks.stream()
+                  .filter(
+                      c ->
+                          !GateCheckMetrics.PASSED.equals(c.outcome())
+                              && !GateCheckMetrics.FAILED.equals(c.outcome()))
+                  .count()));
+      writer.writeAttribute("time", seconds(checks.stream().mapToLong(c -> c.totalTime()).sum()));
+      for (GateCheckMetrics check : checks) {
+        writer.writeCharacters("\n  ");
+        writeTestCase(writer, check);
+      }
+      writer.writeCharacters("\n");
+      writer.writeEndElement();
+      writer.writeCharacters("\n");
+      writer.writeEndDocument();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return xml.toString();
+  }
+
+  private static void writeTestCase(XMLStreamWriter writer, GateCheckMetrics check)
+      throws XMLStreamException {
+    writer.writeStartElement("testcase");
+    writer.writeAttribute("classname", TEST_SUITE_NAME);
+    writer.writeAttribute("name", check.projectKey());
+    writer.writeAttribute("time", seconds(check.totalTime()));
+    if (GateCheckMetrics.FAILED.equals(check.outcome())) {
+      writer.writeStartElement("failure");
+      writer.writeAttribute("message", "Project does not pass the quality gate");
+      writer.writeAttribute("type", GateCheckMetrics.FAILED);
+      writer.writeCharacters(describeConditions(check));
+      writer.writeEndElement();
+    } else if (!GateCheckMetrics.PASSED.equals(check.outcome())) {
+      writer.writeStartElement("error");
+      writer.writeAttribute(
+          "message", check.message() == null ? "Quality gate not checked" : check.message());
+      writer.writeAttribute("type", String.valueOf(check.outcome()));
+      writer.writeEndElement();
+    }
+    writer.writeEndElement();
+  }
+
+  /** @return one line per condition that is not met, e.g. {@code ERROR Coverage: 75.0 < 80} */
+  private static String describeConditions(GateCheckMetrics check) {
+    StringBuilder description = new StringBuilder();
+    ProjectStatus projectStatus = check.projectStatus();
+    if (projectStatus == null) {
+      return "";
+    }
+    for (Condition condition : projectStatus.getConditionsList()) {
+      switch (condition.getStatus()) {
+        case ERROR:
+        case WARN:
+          description
+              .append(condition.getStatus())
+              .append(' ')
+              .append(check.metricNames().get(condition.getMetricKey()))
+              .append(": ")
+              .append(condition.getActualValue())
+              .append(' ')
+              .append(QualityGateBreaker.getComparatorSymbol(condition.getComparator()))
+              .append(' ')
+              .append(
+                  condition.getStatus() == Status.ERROR
+                      ? condition.getErrorThreshold()
+                      : condition.getWarningThreshold())
+              .append('\n');
+          break;
+        default:
+          break;
+      }
+    }
+    return description.toString();
+  }
+
+  private static String seconds(long millis) {
+    return String.format(Locale.ENGLISH, "%.3f", Math.max(0, millis) / 1000.0);
+  }
+}
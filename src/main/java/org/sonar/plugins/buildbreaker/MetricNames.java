@@ -0,0 +1,139 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Metric;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsClient;
+
+/**
+ * Resolves the names of the metrics of quality gate conditions. Core metric names are indexed once
+ * per JVM. The names of the other metrics, e.g. those of plugins, are fetched from the server and
+ * cached per server URL for {@link BuildBreakerPlugin#METRIC_NAMES_TTL_KEY}; keys that cannot be
+ * resolved are used as names.
+ */
+final class MetricNames {
+
+  private static final Logger LOGGER = Loggers.get(MetricNames.class);
+
+  private static final Map<String, String> CORE_METRIC_NAMES = indexCoreMetrics();
+
+  /** Resolves core metrics only. */
+  static final MetricNames CORE = new MetricNames(Collections.emptyMap());
+
+  private static final int PAGE_SIZE = 500;
+
+  private final Map<String, String> customNames;
+
+  private MetricNames(Map<String, String> customNames) {
+    this.customNames = customNames;
+  }
+
+  private static Map<String, String> indexCoreMetrics() {
+    Map<String, String> names = new HashMap<>();
+    for (Metric<?> metric : CoreMetrics.getMetrics()) {
+      names.put(metric.getKey(), metric.getName());
+    }
+    return Collections.unmodifiableMap(names);
+  }
+
+  /** @return the name of the metric, or its key if the metric is unknown */
+  String get(String metricKey) {
+    String name = CORE_METRIC_NAMES.get(metricKey);
+    if (name == null) {
+      name = customNames.getOrDefault(metricKey, metricKey);
+    }
+    return name;
+  }
+
+  /**
+   * Resolves the names of the non-core metrics of the server, from the cache if it is fresh enough.
+   * The requests run on the calling thread, so the connector of the check bounds them by its
+   * deadline. Failures, including an exceeded deadline, are logged and leave the keys unresolved.
+   */
+  static MetricNames fetch(WsClient wsClient, Configuration config) {
+    long ttl = config.getLong(BuildBreakerPlugin.METRIC_NAMES_TTL_KEY).orElse(0L);
+    if (ttl <= 0) {
+      return CORE;
+    }
+    File cacheFile =
+        new File(
+            BuildBreakerCache.getDirectory(config),
+            "metrics/" + BuildBreakerCache.toFileName(wsClient.wsConnector().baseUrl()));
+    if (cacheFile.isFile() && System.currentTimeMillis() - cacheFile.lastModified() < ttl) {
+      return fromProperties(BuildBreakerCache.load(cacheFile));
+    }
+    return download(wsClient, cacheFile);
+  }
+
+  private static MetricNames download(WsClient wsClient, File cacheFile) {
+    Properties names = new Properties();
+    try {
+      int total = Integer.MAX_VALUE;
+      for (int page = 1; (long) (page - 1) * PAGE_SIZE < total; page++) {
+        String content =
+            wsClient
+                .wsConnector()
+                .call(
+                    new GetRequest("api/metrics/search")
+                        .setParam("f", "name")
+                        .setParam("ps", PAGE_SIZE)
+                        .setParam("p", page)
+                        .setMediaType(MediaTypes.JSON))
+                .failIfNotSuccessful()
+                .content();
+        JsonObject json = new JsonParser().parse(content).getAsJsonObject();
+        total = json.has("total") ? json.get("total").getAsInt() : 0;
+        for (JsonElement element : json.getAsJsonArray("metrics")) {
+          JsonObject metric = element.getAsJsonObject();
+          String key = metric.get("key").getAsString();
+          if (!CORE_METRIC_NAMES.containsKey(key) && metric.has("name")) {
+            names.setProperty(key, metric.get("name").getAsString());
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      // Includes JsonParseException and the failures of the request
+      LOGGER.debug("Unable to fetch the metric names, using the cached ones: {}", e.getMessage());
+      return fromProperties(BuildBreakerCache.load(cacheFile));
+    }
+    BuildBreakerCache.store(cacheFile, names);
+    return fromProperties(names);
+  }
+
+  private static MetricNames fromProperties(Properties properties) {
+    Map<String, String> names = new HashMap<>();
+    properties.stringPropertyNames().forEach(key -> names.put(key, properties.getProperty(key)));
+    return new MetricNames(names);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import org.sonar.api.config.Configuration;
+
+/**
+ * Decides how long to wait before querying the Compute Engine task again while the report is still
+ * being processed.
+ */
+interface PollingStrategy {
+
+  String FIXED = "fixed";
+
+  String EXPONENTIAL = "exponential";
+
+  String FAST_START = "fastStart";
+
+  /** @return the number of milliseconds to wait before the first query */
+  default long initialDelay() {
+    return 0;
+  }
+
+  /**
+   * @param attempt zero-based index of the query that has just reported the task as pending or in
+   *     progress
+   * @return the number of milliseconds to wait before the next query
+   */
+  long nextDelay(int attempt);
+
+  /** Always waits the same interval. This is the historical behavior of the plugin. */
+  static PollingStrategy fixed(long interval) {
+    return attempt -> interval;
+  }
+
+  /**
+   * Doubles the wait time after every query, starting at {@code initialInterval} and never
+   * exceeding {@code maxInterval}. Each delay is randomized between half and all of its nominal
+   * value so that builds started at the same time do not keep querying the server in lockstep.
+   */
+  static PollingStrategy exponential(long initialInterval, long maxInterval) {
+    return attempt -> jitter(backoff(initialInterval, maxInterval, attempt));
+  }
+
+  /**
+   * Queries every {@code initialInterval} for the first {@code fastAttempts} queries, which is
+   * enough for small projects, then backs off exponentially up to {@code maxInterval}.
+   */
+  static PollingStrategy fastStart(long initialInterval, int fastAttempts, long maxInterval) {
+    return attempt ->
+        attempt < fastAttempts
+            ? Math.min(initialInterval, maxInterval)
+            : jitter(backoff(initialInterval, maxInterval, attempt - fastAttempts + 1));
+  }
+
+  static long backoff(long initialInterval, long maxInterval, int exponent) {
+    // Stop doubling once the cap is reached so that large exponents cannot overflow
+    long delay = initialInterval;
+    for (int i = 0; i < exponent && delay < maxInterval; i++) {
+      delay = delay > maxInterval / 2 ? maxInterval : delay * 2;
+    }
+    return Math.min(delay, maxInterval);
+  }
+
+  static long jitter(long delay) {
+    long half = delay / 2;
+    return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+  }
+
+  /** Creates the strategy selected by {@link BuildBreakerPlugin#POLLING_STRATEGY_KEY}. */
+  static PollingStrategy fromConfig(Configuration config) {
+    long interval = config.getLong(BuildBreakerPlugin.QUERY_INTERVAL_KEY).orElse(0L);
+    long initialInterval =
+        config.getLong(BuildBreakerPlugin.QUERY_INITIAL_INTERVAL_KEY).orElse(interval);
+    String strategy = config.get(BuildBreakerPlugin.POLLING_STRATEGY_KEY).orElse(FIXED);
+
+    switch (strategy.toLowerCase(Locale.ENGLISH)) {
+      case "fixed":
+        return fixed(interval);
+      case "exponential":
+        return exponential(initialInterval, interval);
+      case "faststart":
+        return fastStart(
+            initialInterval,
+            config.getInt(BuildBreakerPlugin.FAST_START_ATTEMPTS_KEY).orElse(0),
+            interval);
+      default:
+        throw new IllegalArgumentException(
+            "Unknown polling strategy ("
+                + BuildBreakerPlugin.POLLING_STRATEGY_KEY
+                + "): "
+                + strategy);
+    }
+  }
+}
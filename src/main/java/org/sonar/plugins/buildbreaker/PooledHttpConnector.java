@@ -0,0 +1,334 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Credentials;
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Configuration;
+import org.sonarqube.ws.client.HttpException;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * Sends web service requests through a connection pool shared by the whole JVM, so that a
+ * long-lived process (such as a Gradle daemon) reuses warm connections from one build to the next
+ * instead of paying a TCP and TLS handshake for each of them.
+ *
+ * <p>Each connector applies its own connect, read and call timeouts on top of the shared pool.
+ * Responses are requested gzip-compressed and read completely before {@link #call(WsRequest)}
+ * returns, which releases the connection to the pool right away and lets the call timeout cover the
+ * whole exchange.
+ *
+ * <p>If {@link BuildBreakerPlugin#CIRCUIT_BREAKER_KEY} is set, every request goes through the
+ * {@link CircuitBreaker} of the server.
+ */
+final class PooledHttpConnector implements WsConnector {
+
+  private static final String USER_AGENT = "SonarQube Build Breaker";
+
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private static final AtomicLong REQUEST_COUNT = new AtomicLong();
+
+  private static final AtomicLong CONNECTION_COUNT = new AtomicLong();
+
+  private static final Set<Connection> CONNECTIONS =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  private static final OkHttpClient SHARED_CLIENT =
+      new OkHttpClient.Builder()
+          .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+          .followRedirects(false)
+          .followSslRedirects(false)
+          .addNetworkInterceptor(
+              chain -> {
+                Connection connection = chain.connection();
+                if (connection != null && CONNECTIONS.add(connection)) {
+                  CONNECTION_COUNT.incrementAndGet();
+                }
+                return chain.proceed(chain.request());
+              })
+          .build();
+
+  private static final ScheduledExecutorService CALL_TIMEOUTS =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "buildbreaker-call-timeout");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final HttpUrl baseUrl;
+  private final OkHttpClient client;
+  private final String credentials;
+  private final long callTimeout;
+  private final Deadline deadline;
+  private final GateCheckMetrics metrics;
+  private final CircuitBreaker circuit;
+
+  PooledHttpConnector(String serverUrl, Configuration config) {
+    this(serverUrl, config, Deadline.none(), null);
+  }
+
+  /**
+   * @param deadline deadline of the whole check, which also bounds every single call
+   * @param metrics metrics recording the latency of every call, or {@code null}
+   */
+  PooledHttpConnector(
+      String serverUrl, Configuration config, Deadline deadline, GateCheckMetrics metrics) {
+    HttpUrl url = HttpUrl.parse(serverUrl.endsWith("/") ? serverUrl : serverUrl + "/");
+    if (url == null) {
+      throw new IllegalArgumentException("Malformed URL: '" + serverUrl + "'");
+    }
+    this.baseUrl = url;
+    this.client = newClientBuilder(config).build();
+    this.callTimeout = config.getLong(BuildBreakerPlugin.CALL_TIMEOUT_KEY).orElse(0L);
+    this.deadline = deadline;
+    this.metrics = metrics;
+    this.circuit = CircuitBreaker.fromConfig(baseUrl.toString(), config);
+
+    String login = config.get(CoreProperties.LOGIN).orElse(null);
+    this.credentials =
+        login == null || login.isEmpty()
+            ? null
+            : Credentials.basic(
+                login, config.get(CoreProperties.PASSWORD).orElse(""), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return a builder of clients sharing the connection pool of the connectors, with the timeouts
+   *     of {@link BuildBreakerPlugin#CONNECT_TIMEOUT_KEY} and {@link
+   *     BuildBreakerPlugin#READ_TIMEOUT_KEY}
+   */
+  static OkHttpClient.Builder newClientBuilder(Configuration config) {
+    return SHARED_CLIENT
+        .newBuilder()
+        .connectTimeout(
+            config.getLong(BuildBreakerPlugin.CONNECT_TIMEOUT_KEY).orElse(0L),
+            TimeUnit.MILLISECONDS)
+        .readTimeout(
+            config.getLong(BuildBreakerPlugin.READ_TIMEOUT_KEY).orElse(0L), TimeUnit.MILLISECONDS);
+  }
+
+  /** @return the number of requests made by all connectors since the JVM started */
+  static long requestCount() {
+    return REQUEST_COUNT.get();
+  }
+
+  /** @return the number of connections opened by all connectors since the JVM started */
+  static long connectionCount() {
+    return CONNECTION_COUNT.get();
+  }
+
+  @Override
+  public String baseUrl() {
+    return baseUrl.toString();
+  }
+
+  @Override
+  public WsResponse call(WsRequest wsRequest) {
+    HttpUrl.Builder url = baseUrl.newBuilder().addPathSegments(wsRequest.getPath());
+    Request.Builder request =
+        new Request.Builder()
+            .header("User-Agent", USER_AGENT)
+            .header("Accept", wsRequest.getMediaType())
+            .header("Accept-Charset", "UTF-8");
+    if (credentials != null) {
+      request.header("Authorization", credentials);
+    }
+    wsRequest
+        .getHeaders()
+        .getNames()
+        .forEach(
+            name -> wsRequest.getHeaders().getValue(name).ifPresent(v -> request.header(name, v)));
+
+    if (wsRequest.getMethod() == WsRequest.Method.GET) {
+      wsRequest
+          .getParameters()
+          .getKeys()
+          .forEach(
+              key ->
+                  wsRequest
+                      .getParameters()
+                      .getValues(key)
+                      .forEach(value -> url.addQueryParameter(key, value)));
+      request.get();
+    } else {
+      FormBody.Builder body = new FormBody.Builder();
+      wsRequest
+          .getParameters()
+          .getKeys()
+          .forEach(
+              key ->
+                  wsRequest.getParameters().getValues(key).forEach(value -> body.add(key, value)));
+      request.post(body.build());
+    }
+
+    deadline.check();
+    boolean probe = circuit != null && circuit.acquire();
+    REQUEST_COUNT.incrementAndGet();
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      WsResponse response = execute(client.newCall(request.url(url.build()).build()));
+      failed = response.code() >= 500 || response.code() == HTTP_TOO_MANY_REQUESTS;
+      return response;
+    } finally {
+      long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      if (metrics != null) {
+        metrics.recordRequest(wsRequest.getPath(), millis);
+      }
+      if (circuit != null) {
+        circuit.record(probe, failed || circuit.isSlow(millis));
+      }
+    }
+  }
+
+  private WsResponse execute(Call call) {
+    String requestUrl = call.request().url().toString();
+    long timeoutMs = deadline.cap(callTimeout > 0 ? callTimeout : Long.MAX_VALUE);
+    ScheduledFuture<?> timeout =
+        timeoutMs < Long.MAX_VALUE
+            ? CALL_TIMEOUTS.schedule(call::cancel, timeoutMs, TimeUnit.MILLISECONDS)
+            : null;
+    try (Response response = call.execute()) {
+      ResponseBody body = response.body();
+      return new BufferedResponse(
+          requestUrl,
+          response.code(),
+          response.header("Content-Type"),
+          response.headers(),
+          body == null ? new byte[0] : body.bytes());
+    } catch (IOException e) {
+      if (call.isCanceled() && deadline.isExpired()) {
+        throw new DeadlineExceededException(deadline.timeout());
+      }
+      if (call.isCanceled()) {
+        throw new IllegalStateException(
+            "Request to " + requestUrl + " timed out after " + callTimeout + " ms", e);
+      }
+      throw new IllegalStateException("Fail to request " + requestUrl, e);
+    } finally {
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+    }
+  }
+
+  private static final class BufferedResponse implements WsResponse {
+    private final String requestUrl;
+    private final int code;
+    private final String contentType;
+    private final okhttp3.Headers headers;
+    private final byte[] content;
+
+    BufferedResponse(
+        String requestUrl, int code, String contentType, okhttp3.Headers headers, byte[] content) {
+      this.requestUrl = requestUrl;
+      this.code = code;
+      this.contentType = contentType;
+      this.headers = headers;
+      this.content = content;
+    }
+
+    @Override
+    public String requestUrl() {
+      return requestUrl;
+    }
+
+    @Override
+    public int code() {
+      return code;
+    }
+
+    @Override
+    public boolean isSuccessful() {
+      return code >= 200 && code < 300;
+    }
+
+    @Override
+    public WsResponse failIfNotSuccessful() {
+      if (!isSuccessful()) {
+        throw new HttpException(requestUrl, code, content());
+      }
+      return this;
+    }
+
+    @Override
+    public String contentType() {
+      return contentType;
+    }
+
+    @Override
+    public Optional<String> header(String name) {
+      return Optional.ofNullable(headers.get(name));
+    }
+
+    @Override
+    public boolean hasContent() {
+      return code != 204;
+    }
+
+    @Override
+    public InputStream contentStream() {
+      return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public Reader contentReader() {
+      return new InputStreamReader(contentStream(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String content() {
+      return new String(content, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+      // The content has already been read and the connection released
+    }
+  }
+}
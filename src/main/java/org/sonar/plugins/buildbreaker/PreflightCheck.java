@@ -0,0 +1,221 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.base.Strings;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * Checks, when the analysis starts, that the quality gate will be readable once it is done: the
+ * server is reachable, the credentials are valid and they grant the permission to browse the
+ * project, which both {@code api/ce/task} and {@code api/qualitygates/project_status} require.
+ *
+ * <p>{@link PreflightSensor} runs the check and breaks the build before the other sensors run if it
+ * failed. A passed check is cached per server URL, project and login for {@link
+ * BuildBreakerPlugin#PREFLIGHT_TTL_KEY}.
+ */
+final class PreflightCheck {
+
+  private static final Logger LOGGER = Loggers.get(PreflightCheck.class);
+
+  static final String SERVER_URL_KEY = "sonar.host.url";
+
+  static final String PROJECT_KEY_KEY = "sonar.projectKey";
+
+  static final String BRANCH_KEY = "sonar.branch";
+
+  private static final String DEFAULT_SERVER_URL = "http://localhost:9000";
+
+  private PreflightCheck() {
+    // Utility class
+  }
+
+  static boolean isEnabled(Configuration config) {
+    return config.getBoolean(BuildBreakerPlugin.PREFLIGHT_KEY).orElse(false);
+  }
+
+  /**
+   * @return the key of the analysed project on the server, which includes the legacy {@code
+   *     sonar.branch} if set
+   */
+  static String getProjectKey(Configuration config) {
+    String projectKey = config.get(PROJECT_KEY_KEY).orElse("");
+    return config
+        .get(BRANCH_KEY)
+        .filter(branch -> !branch.isEmpty())
+        .map(branch -> projectKey + ":" + branch)
+        .orElse(projectKey);
+  }
+
+  /**
+   * Runs the check, unless it has passed recently.
+   *
+   * @throws IllegalStateException if the check failed
+   */
+  static void run(Configuration config, String projectKey) {
+    try {
+      check(config, projectKey).join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CircuitOpenException) {
+        // The server is known to be unavailable, which the quality gate check handles
+        LOGGER.warn("Pre-flight check skipped: {}", cause.getMessage());
+        return;
+      }
+      throw cause instanceof IllegalStateException
+          ? (IllegalStateException) cause
+          : new IllegalStateException(cause.getMessage(), cause);
+    }
+  }
+
+  /** @return the running check, or a completed one if it has passed recently */
+  static CompletableFuture<Void> check(Configuration config, String projectKey) {
+    String serverUrl = getServerUrl(config);
+    File passedFile =
+        new File(
+            BuildBreakerCache.getDirectory(config),
+            "preflight/" + cacheKey(serverUrl, projectKey, config));
+    long ttl = config.getLong(BuildBreakerPlugin.PREFLIGHT_TTL_KEY).orElse(0L);
+    if (passedFile.isFile() && System.currentTimeMillis() - passedFile.lastModified() < ttl) {
+      LOGGER.debug("Pre-flight check passed recently for {}", serverUrl);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    LOGGER.info("Checking access to the quality gate of {} on {}", projectKey, serverUrl);
+    WsConnector connector = new PooledHttpConnector(serverUrl, config);
+    return CompletableFuture.allOf(
+            CompletableFuture.runAsync(() -> checkAuthentication(connector)),
+            CompletableFuture.runAsync(() -> checkPermission(connector, projectKey)))
+        .thenRun(
+            () -> {
+              if (ttl > 0) {
+                BuildBreakerCache.store(passedFile, Long.toString(System.currentTimeMillis()));
+              }
+            });
+  }
+
+  /**
+   * @return the URL of the server the analysis is sent to, or {@link
+   *     BuildBreakerPlugin#ALTERNATIVE_SERVER_URL_KEY} if set
+   */
+  static String getServerUrl(Configuration config) {
+    return config
+        .get(BuildBreakerPlugin.ALTERNATIVE_SERVER_URL_KEY)
+        .filter(url -> !url.isEmpty())
+        .orElseGet(() -> config.get(SERVER_URL_KEY).orElse(DEFAULT_SERVER_URL));
+  }
+
+  /** The file name of a check, which does not disclose the login. */
+  private static String cacheKey(String serverUrl, String projectKey, Configuration config) {
+    return BuildBreakerCache.toPrivateFileName(
+        serverUrl, projectKey, config.get(CoreProperties.LOGIN).orElse(""));
+  }
+
+  private static void checkAuthentication(WsConnector connector) {
+    WsResponse response =
+        call(
+            connector, new GetRequest("api/authentication/validate").setMediaType(MediaTypes.JSON));
+    if (response.code() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+      failIfNotSuccessful(response);
+      if (isValid(response)) {
+        return;
+      }
+    }
+    throw invalidCredentials(connector);
+  }
+
+  private static IllegalStateException invalidCredentials(WsConnector connector) {
+    return new IllegalStateException(
+        "Pre-flight check failed: invalid credentials for "
+            + connector.baseUrl()
+            + ", check "
+            + CoreProperties.LOGIN
+            + " and "
+            + CoreProperties.PASSWORD);
+  }
+
+  private static boolean isValid(WsResponse response) {
+    try {
+      JsonElement valid = new JsonParser().parse(response.content()).getAsJsonObject().get("valid");
+      return valid == null || valid.getAsBoolean();
+    } catch (RuntimeException e) {
+      throw new IllegalStateException(
+          "Pre-flight check failed: unexpected response from " + response.requestUrl(), e);
+    }
+  }
+
+  private static void checkPermission(WsConnector connector, String projectKey) {
+    if (Strings.isNullOrEmpty(projectKey)) {
+      return;
+    }
+    WsResponse response =
+        call(
+            connector,
+            new GetRequest("api/qualitygates/project_status")
+                .setParam("projectKey", projectKey)
+                .setMediaType(MediaTypes.PROTOBUF));
+    switch (response.code()) {
+      case HttpURLConnection.HTTP_UNAUTHORIZED:
+        throw invalidCredentials(connector);
+      case HttpURLConnection.HTTP_FORBIDDEN:
+        throw new IllegalStateException(
+            "Pre-flight check failed: missing 'Browse' permission on project "
+                + projectKey
+                + ", which is required to read its quality gate status");
+      case HttpURLConnection.HTTP_NOT_FOUND:
+        // First analysis of the project, or no analysis yet
+        break;
+      default:
+        failIfNotSuccessful(response);
+    }
+  }
+
+  private static WsResponse call(WsConnector connector, GetRequest request) {
+    try {
+      return connector.call(request);
+    } catch (CircuitOpenException e) {
+      throw e;
+    } catch (IllegalStateException e) {
+      throw new IllegalStateException(
+          "Pre-flight check failed: unable to reach " + connector.baseUrl() + ": " + e.getMessage(),
+          e);
+    }
+  }
+
+  private static void failIfNotSuccessful(WsResponse response) {
+    if (!response.isSuccessful()) {
+      throw new IllegalStateException(
+          "Pre-flight check failed: HTTP " + response.code() + " on " + response.requestUrl());
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import org.sonar.api.batch.Phase;
+import org.sonar.api.batch.sensor.Sensor;
+import org.sonar.api.batch.sensor.SensorContext;
+import org.sonar.api.batch.sensor.SensorDescriptor;
+
+/**
+ * Runs the {@link PreflightCheck} and breaks the build before the other sensors run if it fails.
+ */
+@Phase(name = Phase.Name.PRE)
+public final class PreflightSensor implements Sensor {
+
+  @Override
+  public void describe(SensorDescriptor descriptor) {
+    descriptor
+        .name("Build Breaker Pre-flight Check")
+        .onlyWhenConfiguration(PreflightCheck::isEnabled);
+  }
+
+  @Override
+  public void execute(SensorContext context) {
+    PreflightCheck.run(context.config(), PreflightCheck.getProjectKey(context.config()));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Checks the quality gate of an analysis outside of the scanner, e.g. in a later pipeline step or
+ * to retry a check without running the analysis again. Usage:
+ *
+ * <ul>
+ *   <li>{@code QualityGateAwait <file> [-Dkey=value...]}, where the file is either the handoff of a
+ *       detached check (see {@link BuildBreakerPlugin#DETACHED_KEY}) or the {@code report-task.txt}
+ *       of an analysis;
+ *   <li>{@code QualityGateAwait --ceTaskId <id> --serverUrl <url> [-Dkey=value...]}.
+ * </ul>
+ *
+ * <p>The {@code -D} arguments override the plugin settings, e.g. {@code
+ * -Dsonar.buildbreaker.timeout=600000}. When a file is given, the verdict is written next to it.
+ * The process exits with status 0 if the project passes the quality gate (or could not be checked,
+ * if {@link BuildBreakerPlugin#TIMEOUT_OUTCOME_KEY} or {@link
+ * BuildBreakerPlugin#CIRCUIT_OPEN_OUTCOME_KEY} allows it), 1 if it does not or the gate could not
+ * be checked, and 2 on invalid usage.
+ */
+public final class QualityGateAwait {
+
+  private static final Logger LOGGER = Loggers.get(QualityGateAwait.class);
+
+  static final String VERDICT_FILE_SUFFIX = ".verdict";
+
+  static final String CE_TASK_ID_OPTION = "--ceTaskId";
+
+  static final String SERVER_URL_OPTION = "--serverUrl";
+
+  private static final String SETTING_PREFIX = "-D";
+
+  static final int EXIT_PASSED = 0;
+
+  static final int EXIT_FAILED = 1;
+
+  static final int EXIT_USAGE = 2;
+
+  private QualityGateAwait() {
+    // Entry point only
+  }
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.getenv()));
+  }
+
+  @VisibleForTesting
+  static int run(String[] args, Map<String, String> environment) {
+    Properties settings = new Properties();
+    String file = null;
+    String ceTaskId = null;
+    String serverUrl = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith(SETTING_PREFIX) && arg.indexOf('=') > SETTING_PREFIX.length()) {
+        int separator = arg.indexOf('=');
+        settings.setProperty(
+            arg.substring(SETTING_PREFIX.length(), separator), arg.substring(separator + 1));
+      } else if (CE_TASK_ID_OPTION.equals(arg) && i + 1 < args.length) {
+        ceTaskId = args[++i];
+      } else if (SERVER_URL_OPTION.equals(arg) && i + 1 < args.length) {
+        serverUrl = args[++i];
+      } else if (file == null && !arg.startsWith("-")) {
+        file = arg;
+      } else {
+        return usage();
+      }
+    }
+    if (file == null
+        ? ceTaskId == null || serverUrl == null
+        : ceTaskId != null || serverUrl != null) {
+      return usage();
+    }
+    File verdictFile = file == null ? null : new File(file + VERDICT_FILE_SUFFIX);
+
+    Properties verdict = new Properties();
+    int exitCode;
+    try {
+      Properties reportTaskProps = new Properties();
+      if (file == null) {
+        reportTaskProps.setProperty("ceTaskId", ceTaskId);
+        reportTaskProps.setProperty(QualityGateHandoff.SERVER_URL_KEY, serverUrl);
+      } else {
+        // A report-task.txt has the same format as a handoff without plugin settings
+        reportTaskProps.putAll(QualityGateHandoff.load(new File(file)));
+      }
+      reportTaskProps.putAll(settings);
+      Configuration config = QualityGateHandoff.toConfiguration(reportTaskProps, environment);
+      // The report task properties are already known, so no file system is needed
+      verdict.setProperty(
+          "status", new QualityGateBreaker(null, config).checkReportTaskOutcome(reportTaskProps));
+      exitCode = EXIT_PASSED;
+    } catch (RuntimeException e) {
+      // Whatever went wrong, e.g. an invalid setting or an unexpected server response, the gate
+      // was not checked
+      String message = e instanceof IllegalStateException ? e.getMessage() : e.toString();
+      LOGGER.error("{} {}", BuildBreakerPlugin.LOG_STAMP, message);
+      verdict.setProperty("status", "FAILED");
+      verdict.setProperty("message", String.valueOf(message));
+      exitCode = EXIT_FAILED;
+    }
+    if (verdictFile != null) {
+      BuildBreakerCache.store(verdictFile, verdict);
+    }
+    return exitCode;
+  }
+
+  private static int usage() {
+    LOGGER.error(
+        "Usage: QualityGateAwait <handoff file or report-task.txt> [-Dkey=value...]\n"
+            + "   or: QualityGateAwait "
+            + CE_TASK_ID_OPTION
+            + " <id> "
+            + SERVER_URL_OPTION
+            + " <url> [-Dkey=value...]");
+    return EXIT_USAGE;
+  }
+}
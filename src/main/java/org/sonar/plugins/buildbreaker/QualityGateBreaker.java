@@ -24,20 +24,39 @@ import com.google.common.base.Strings;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.sonar.api.CoreProperties;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.postjob.PostJob;
 import org.sonar.api.batch.postjob.PostJobContext;
 import org.sonar.api.batch.postjob.PostJobDescriptor;
 import org.sonar.api.config.Configuration;
-import org.sonar.api.measures.CoreMetrics;
-import org.sonar.api.measures.Metric;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Ce.Task;
 import org.sonarqube.ws.Ce.TaskResponse;
 import org.sonarqube.ws.Ce.TaskStatus;
 import org.sonarqube.ws.MediaTypes;
@@ -47,9 +66,9 @@ import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
 import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
 import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
 import org.sonarqube.ws.client.GetRequest;
-import org.sonarqube.ws.client.HttpConnector;
 import org.sonarqube.ws.client.WsClient;
 import org.sonarqube.ws.client.WsClientFactories;
+import org.sonarqube.ws.client.WsConnector;
 import org.sonarqube.ws.client.WsRequest;
 import org.sonarqube.ws.client.WsResponse;
 import org.sonarqube.ws.client.qualitygates.ProjectStatusRequest;
@@ -64,6 +83,19 @@ public final class QualityGateBreaker implements PostJob {
 
   static final String METADATA_FILE_PATH_KEY = "sonar.scanner.metadataFilePath";
 
+  static final String REPORT_TASK_FILE_NAME = "report-task.txt";
+
+  /** Written to the working directory when a timed out check is let through. */
+  static final String TIMEOUT_MARKER_FILE_NAME = "buildbreaker-timeout.properties";
+
+  /** Written to the working directory when a check is let through because the circuit is open. */
+  static final String CIRCUIT_OPEN_MARKER_FILE_NAME = "buildbreaker-circuit-open.properties";
+
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  /** How long a listing of the Compute Engine queue is shared between concurrent checks. */
+  private static final long QUEUE_MAX_AGE = 1000;
+
   private final FileSystem fileSystem;
   private final Configuration config;
 
@@ -80,13 +112,17 @@ public final class QualityGateBreaker implements PostJob {
 
   @VisibleForTesting
   static int logConditions(List<Condition> conditionsList) {
+    return logConditions(conditionsList, MetricNames.CORE);
+  }
+
+  private static int logConditions(List<Condition> conditionsList, MetricNames metricNames) {
     int errors = 0;
 
     for (Condition condition : conditionsList) {
       if (Status.WARN.equals(condition.getStatus())) {
         LOGGER.warn(
             "{}: {} {} {}",
-            getMetricName(condition.getMetricKey()),
+            metricNames.get(condition.getMetricKey()),
             condition.getActualValue(),
             getComparatorSymbol(condition.getComparator()),
             condition.getWarningThreshold());
@@ -94,7 +130,7 @@ public final class QualityGateBreaker implements PostJob {
         errors++;
         LOGGER.error(
             "{}: {} {} {}",
-            getMetricName(condition.getMetricKey()),
+            metricNames.get(condition.getMetricKey()),
             condition.getActualValue(),
             getComparatorSymbol(condition.getComparator()),
             condition.getErrorThreshold());
@@ -104,17 +140,7 @@ public final class QualityGateBreaker implements PostJob {
     return errors;
   }
 
-  private static String getMetricName(String metricKey) {
-    try {
-      Metric metric = CoreMetrics.getMetric(metricKey);
-      return metric.getName();
-    } catch (NoSuchElementException e) {
-      LOGGER.trace("Using key as name for custom metric '{}' due to '{}'", metricKey, e);
-    }
-    return metricKey;
-  }
-
-  private static String getComparatorSymbol(Comparator comparator) {
+  static String getComparatorSymbol(Comparator comparator) {
     switch (comparator) {
       case GT:
         return ">";
@@ -152,7 +178,10 @@ public final class QualityGateBreaker implements PostJob {
 
   @VisibleForTesting
   Properties loadReportTaskProps() {
-    File reportTaskFile = getReportTaskFile();
+    return loadReportTaskProps(getReportTaskFile());
+  }
+
+  private static Properties loadReportTaskProps(File reportTaskFile) {
     LOGGER.debug("Loading report task properties from {}", reportTaskFile.getAbsolutePath());
 
     Properties reportTaskProps = new Properties();
@@ -165,48 +194,155 @@ public final class QualityGateBreaker implements PostJob {
     return reportTaskProps;
   }
 
+  private File getHandoffFile() {
+    return config
+        .get(BuildBreakerPlugin.HANDOFF_FILE_KEY)
+        .map(File::new)
+        .orElseGet(() -> new File(fileSystem.workDir(), QualityGateHandoff.DEFAULT_FILE_NAME));
+  }
+
+  private CeTaskHistory loadCeTaskHistory(Properties reportTaskProps) {
+    String projectKey = reportTaskProps.getProperty("projectKey");
+    int size =
+        projectKey == null ? 0 : config.getInt(BuildBreakerPlugin.CE_HISTORY_SIZE_KEY).orElse(0);
+    return CeTaskHistory.load(
+        BuildBreakerCache.getDirectory(config),
+        getServerUrl(reportTaskProps),
+        Strings.nullToEmpty(projectKey),
+        size);
+  }
+
   private File getReportTaskFile() {
     // Note: Sonar requires metadataFilePath to point to an absolute file path, so we can convert
     // directly to a file.
     return config
         .get(METADATA_FILE_PATH_KEY)
         .map(File::new)
-        .orElseGet(() -> new File(fileSystem.workDir(), "report-task.txt"));
+        .orElseGet(() -> new File(fileSystem.workDir(), REPORT_TASK_FILE_NAME));
   }
 
+  /**
+   * @return the report task files listed in {@link BuildBreakerPlugin#REPORT_TASK_PATHS_KEY}, where
+   *     directories are searched recursively for {@code report-task.txt} files
+   */
   @VisibleForTesting
+  List<File> getReportTaskFiles() {
+    Set<File> reportTaskFiles = new LinkedHashSet<>();
+    for (String path : config.getStringArray(BuildBreakerPlugin.REPORT_TASK_PATHS_KEY)) {
+      File file = new File(path);
+      if (!file.isAbsolute() && fileSystem != null) {
+        file = new File(fileSystem.baseDir(), path);
+      }
+      if (file.isDirectory()) {
+        try (Stream<Path> paths = java.nio.file.Files.walk(file.toPath())) {
+          paths
+              .filter(p -> REPORT_TASK_FILE_NAME.equals(p.getFileName().toString()))
+              .sorted()
+              .forEach(p -> reportTaskFiles.add(p.toFile()));
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to search report task files in " + file, e);
+        }
+      } else {
+        reportTaskFiles.add(file);
+      }
+    }
+    return new ArrayList<>(reportTaskFiles);
+  }
+
+  @VisibleForTesting
+  String getAnalysisId(WsClient wsClient, String ceTaskId) {
+    return waitForTask(
+            wsClient, ceTaskId, PollingStrategy.fromConfig(config), null, null, Deadline.none())
+        .getAnalysisId();
+  }
+
+  /**
+   * Polls the Compute Engine task until it has been processed successfully.
+   *
+   * @param queue shared view of the Compute Engine queue that saves querying the task while it is
+   *     still queued, or {@code null} to always query the task
+   * @param backpressure estimate of the time the task spends in the queue, which spaces the queries
+   *     while it is deep in the queue, or {@code null}
+   * @param deadline deadline of the whole check, which also bounds every wait
+   * @return the successful task, which holds the analysis id and the task's timings
+   */
   // We have to treat a premature interrupt as a failure since we couldn't retrieve the analysis id.
   @SuppressWarnings("squid:S2142")
-  String getAnalysisId(WsClient wsClient, String ceTaskId) {
+  private Task waitForTask(
+      WsClient wsClient,
+      String ceTaskId,
+      PollingStrategy pollingStrategy,
+      CeQueueBatch queue,
+      CeQueueBackpressure backpressure,
+      Deadline deadline) {
     WsRequest ceTaskRequest =
         new GetRequest("api/ce/task").setParam("id", ceTaskId).setMediaType(MediaTypes.PROTOBUF);
 
     int queryMaxAttempts = config.getInt(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY).orElse(0);
-    int queryInterval = config.getInt(BuildBreakerPlugin.QUERY_INTERVAL_KEY).orElse(0);
 
-    for (int attempts = 0; attempts < queryMaxAttempts; attempts++) {
-      WsResponse wsResponse = wsClient.wsConnector().call(ceTaskRequest);
+    long initialDelay = pollingStrategy.initialDelay();
+    if (backpressure != null) {
+      failIfExpectedPastDeadline(backpressure, deadline);
+      initialDelay = backpressure.nextDelay(TaskStatus.PENDING, initialDelay);
+    }
+    int queries = queryMaxAttempts;
+    long queryInterval = config.getLong(BuildBreakerPlugin.QUERY_INTERVAL_KEY).orElse(0L);
+    if (initialDelay > 0 && queryMaxAttempts > 0 && queryInterval > 0) {
+      // The initial delay counts against queryMaxAttempts * queryInterval, leaving one query
+      initialDelay = Math.min(initialDelay, (queryMaxAttempts - 1) * queryInterval);
+      queries -= (int) ((initialDelay + queryInterval - 1) / queryInterval);
+    }
+    if (initialDelay > 0 && queryMaxAttempts > 0) {
+      LOGGER.info("Expecting report processing to complete in {} ms...", initialDelay);
+      try {
+        deadline.sleep(initialDelay);
+      } catch (InterruptedException e) {
+        throw new WaitAbandonedException(e.getMessage(), e);
+      }
+    }
 
+    for (int attempts = 0; attempts < queries; attempts++) {
       try {
+        Optional<TaskStatus> queuedStatus =
+            queue == null ? Optional.empty() : queue.currentStatus(ceTaskId);
+        if (queuedStatus.isPresent()) {
+          LOGGER.info("Waiting for report processing to complete...");
+          deadline.sleep(
+              nextDelay(pollingStrategy, attempts, queuedStatus.get(), backpressure, deadline));
+          continue;
+        }
+
+        WsResponse wsResponse = wsClient.wsConnector().call(ceTaskRequest);
+        if (isThrottled(wsResponse)) {
+          // Honor the server's back-off request, but never poll faster than the strategy would
+          long delay = Math.max(getRetryAfter(wsResponse), pollingStrategy.nextDelay(attempts));
+          LOGGER.info("Server is busy (HTTP {}), retrying in {} ms...", wsResponse.code(), delay);
+          deadline.sleep(delay);
+          continue;
+        }
+
         TaskResponse taskResponse = TaskResponse.parseFrom(wsResponse.contentStream());
         TaskStatus taskStatus = taskResponse.getTask().getStatus();
 
         switch (taskStatus) {
           case IN_PROGRESS:
           case PENDING:
-            // Wait the configured interval then retry
+            // Wait the interval chosen by the polling strategy then retry
             LOGGER.info("Waiting for report processing to complete...");
-            Thread.sleep(queryInterval);
+            deadline.sleep(
+                nextDelay(pollingStrategy, attempts, taskStatus, backpressure, deadline));
             break;
           case SUCCESS:
             // Exit
-            return taskResponse.getTask().getAnalysisId();
+            return taskResponse.getTask();
           default:
             throw new IllegalStateException(
                 "Report processing did not complete successfully: " + taskStatus);
         }
-      } catch (IOException | InterruptedException e) {
+      } catch (IOException e) {
         throw new IllegalStateException(e.getMessage(), e);
+      } catch (InterruptedException e) {
+        throw new WaitAbandonedException(e.getMessage(), e);
       }
     }
 
@@ -217,24 +353,107 @@ public final class QualityGateBreaker implements PostJob {
         BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY,
         BuildBreakerPlugin.QUERY_INTERVAL_KEY);
 
-    throw new IllegalStateException(
+    throw new WaitAbandonedException(
         "Report processing is taking longer than the configured wait limit.");
   }
 
+  private static long nextDelay(
+      PollingStrategy pollingStrategy,
+      int attempts,
+      TaskStatus taskStatus,
+      CeQueueBackpressure backpressure,
+      Deadline deadline) {
+    long delay = pollingStrategy.nextDelay(attempts);
+    if (backpressure == null) {
+      return delay;
+    }
+    delay = backpressure.nextDelay(taskStatus, delay);
+    if (taskStatus == TaskStatus.PENDING) {
+      failIfExpectedPastDeadline(backpressure, deadline);
+    }
+    return delay;
+  }
+
+  /**
+   * Gives up right away, instead of polling until the deadline, if the task is not expected to be
+   * processed in time.
+   */
+  private static void failIfExpectedPastDeadline(
+      CeQueueBackpressure backpressure, Deadline deadline) {
+    long remaining = deadline.remaining();
+    if (backpressure.expectedWait() > remaining) {
+      LOGGER.info(
+          "Report processing is expected to take {} ms, but only {} ms are left",
+          backpressure.expectedWait(),
+          remaining);
+      throw new DeadlineExceededException(deadline.timeout());
+    }
+  }
+
+  private static boolean isThrottled(WsResponse wsResponse) {
+    return wsResponse.code() == HTTP_TOO_MANY_REQUESTS
+        || wsResponse.code() == HttpURLConnection.HTTP_UNAVAILABLE;
+  }
+
+  /**
+   * Reads the {@code Retry-After} header, which holds either a number of seconds or an HTTP date.
+   *
+   * @return the number of milliseconds the server asked us to wait, or 0 if unknown
+   */
+  @VisibleForTesting
+  static long getRetryAfter(WsResponse wsResponse) {
+    String retryAfter = wsResponse.header("Retry-After").map(String::trim).orElse("");
+    if (retryAfter.isEmpty()) {
+      return 0;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter)));
+    } catch (NumberFormatException e) {
+      LOGGER.trace("Retry-After '{}' is not a number of seconds", retryAfter, e);
+    }
+    try {
+      long retryAt =
+          ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME)
+              .toInstant()
+              .toEpochMilli();
+      return Math.max(0, retryAt - System.currentTimeMillis());
+    } catch (DateTimeParseException e) {
+      LOGGER.debug("Ignoring unparseable Retry-After header '{}'", retryAfter);
+    }
+    return 0;
+  }
+
   @VisibleForTesting
   void checkQualityGate(WsClient wsClient, String analysisId) {
+    checkProjectStatus(
+        requestProjectStatus(wsClient, analysisId),
+        () -> MetricNames.fetch(wsClient, config),
+        new GateCheckMetrics(new Properties()));
+  }
+
+  private static ProjectStatus requestProjectStatus(WsClient wsClient, String analysisId) {
     LOGGER.debug("Requesting quality gate status for analysisId {}", analysisId);
     ProjectStatusResponse projectStatusResponse =
         wsClient.qualitygates().projectStatus(new ProjectStatusRequest().setAnalysisId(analysisId));
+    return projectStatusResponse.getProjectStatus();
+  }
 
-    ProjectStatus projectStatus = projectStatusResponse.getProjectStatus();
-
+  /**
+   * @param metricNames supplies the names of the metrics, only called if the gate is not passed
+   * @param metrics the metrics of the check, which record the status for the verdict report
+   */
+  private static void checkProjectStatus(
+      ProjectStatus projectStatus, Supplier<MetricNames> metricNames, GateCheckMetrics metrics) {
     Status status = projectStatus.getStatus();
     LOGGER.info("Quality gate status: {}", status);
 
     int errors = 0;
     if (Status.ERROR.equals(status) || Status.WARN.equals(status)) {
-      errors = logConditions(projectStatus.getConditionsList());
+      MetricNames names = metricNames.get();
+      metrics.recordProjectStatus(projectStatus, names);
+      errors = logConditions(projectStatus.getConditionsList(), names);
+    } else {
+      metrics.recordProjectStatus(projectStatus, MetricNames.CORE);
     }
 
     if (Status.ERROR.equals(status)) {
@@ -251,21 +470,508 @@ public final class QualityGateBreaker implements PostJob {
   @Override
   public void execute(PostJobContext postJobContext) {
     if (shouldExecuteOnProject()) {
-      Properties reportTaskProps = loadReportTaskProps();
+      long requests = PooledHttpConnector.requestCount();
+      long connections = PooledHttpConnector.connectionCount();
+      try {
+        checkQualityGates();
+      } finally {
+        LOGGER.debug(
+            "{} web service requests made over {} new connections",
+            PooledHttpConnector.requestCount() - requests,
+            PooledHttpConnector.connectionCount() - connections);
+      }
+    }
+  }
+
+  private void checkQualityGates() {
+    // A marker left by a previous build must not be mistaken for this one's
+    new File(fileSystem.workDir(), TIMEOUT_MARKER_FILE_NAME).delete();
+    new File(fileSystem.workDir(), CIRCUIT_OPEN_MARKER_FILE_NAME).delete();
+
+    List<File> reportTaskFiles = getReportTaskFiles();
+    if (!reportTaskFiles.isEmpty()) {
+      checkReportTasks(reportTaskFiles);
+      return;
+    }
 
-      HttpConnector httpConnector =
-          HttpConnector.newBuilder()
-              .url(getServerUrl(reportTaskProps))
-              .credentials(
-                  config.get(CoreProperties.LOGIN).orElse(null),
-                  config.get(CoreProperties.PASSWORD).orElse(null))
-              .build();
+    Properties reportTaskProps = loadReportTaskProps();
 
-      WsClient wsClient = WsClientFactories.getDefault().newClient(httpConnector);
+    if (config.getBoolean(BuildBreakerPlugin.DETACHED_KEY).orElse(false)) {
+      File handoffFile = getHandoffFile();
+      QualityGateHandoff.write(handoffFile, reportTaskProps, getServerUrl(reportTaskProps), config);
+      LOGGER.info(
+          "Quality gate check detached, run {} {} to complete it",
+          QualityGateAwait.class.getName(),
+          handoffFile.getAbsolutePath());
+      return;
+    }
+
+    checkReportTask(reportTaskProps, getReportTaskFile());
+  }
+
+  /**
+   * Waits for the report described by the report task properties, then checks the quality gate.
+   *
+   * @return false if the check did not complete within {@link BuildBreakerPlugin#TIMEOUT_KEY}, or
+   *     could not be done because the circuit is open, and the configured outcome lets the build go
+   *     on
+   */
+  boolean checkReportTask(Properties reportTaskProps) {
+    return GateCheckMetrics.PASSED.equals(checkReportTaskOutcome(reportTaskProps));
+  }
 
-      String analysisId = getAnalysisId(wsClient, reportTaskProps.getProperty("ceTaskId"));
+  /**
+   * Waits for the report described by the report task properties, then checks the quality gate.
+   *
+   * @return {@link GateCheckMetrics#PASSED}, or why the check could not be done if the configured
+   *     outcome lets the build go on: {@link GateCheckMetrics#TIMED_OUT} or {@link
+   *     GateCheckMetrics#CIRCUIT_OPEN}
+   */
+  String checkReportTaskOutcome(Properties reportTaskProps) {
+    return checkReportTask(reportTaskProps, null);
+  }
 
-      checkQualityGate(wsClient, analysisId);
+  /**
+   * @param reportTaskFile the file next to which metrics are written, or {@code null}
+   * @return the outcome of the check, if the build goes on
+   */
+  private String checkReportTask(Properties reportTaskProps, File reportTaskFile) {
+    Deadline deadline = Deadline.fromConfig(config);
+    WebhookListener webhook = WebhookListener.start(config).orElse(null);
+    if (webhook != null) {
+      webhook.expect(
+          reportTaskProps.getProperty("ceTaskId"), reportTaskProps.getProperty("projectKey"));
     }
+    GateCheckMetrics metrics = new GateCheckMetrics(reportTaskProps);
+    CeQueueBatch queue =
+        config.getBoolean(BuildBreakerPlugin.SHARED_POLLING_KEY).orElse(false)
+            ? newCeQueueBatch(getServerUrl(reportTaskProps), deadline)
+            : null;
+    UpstreamQualityGates upstream =
+        UpstreamQualityGates.start(config, getServerUrl(reportTaskProps), deadline);
+    List<GateCheckMetrics> upstreamResults = new ArrayList<>();
+    try {
+      try {
+        checkReportTask(reportTaskProps, queue, webhook, deadline, metrics);
+      } finally {
+        // The verdict tells about the upstream projects even if the project did not pass
+        upstreamResults.addAll(upstream.results());
+      }
+      UpstreamQualityGates.check(upstreamResults);
+      return GateCheckMetrics.PASSED;
+    } catch (DeadlineExceededException e) {
+      onDeadlineExceeded(e, Collections.singletonList(reportTaskProps.getProperty("ceTaskId")));
+      return GateCheckMetrics.TIMED_OUT;
+    } catch (CircuitOpenException e) {
+      onCircuitOpen(e, Collections.singletonList(reportTaskProps.getProperty("ceTaskId")));
+      return GateCheckMetrics.CIRCUIT_OPEN;
+    } finally {
+      if (webhook != null) {
+        webhook.close();
+      }
+      publishMetrics(Collections.singletonMap(reportTaskFile, metrics), upstreamResults);
+    }
+  }
+
+  /** Runs one check, recording its outcome and logging a summary of its metrics. */
+  private void checkReportTask(
+      Properties reportTaskProps,
+      CeQueueBatch queue,
+      WebhookListener webhook,
+      Deadline deadline,
+      GateCheckMetrics metrics) {
+    CeTaskCancellation cancellation =
+        CeTaskCancellation.register(
+            config, getServerUrl(reportTaskProps), reportTaskProps.getProperty("ceTaskId"));
+    try {
+      supersedePendingTasks(reportTaskProps, deadline, metrics);
+      waitAndCheckQualityGate(reportTaskProps, queue, webhook, deadline, metrics);
+      metrics.finish(GateCheckMetrics.PASSED, null);
+    } catch (DeadlineExceededException e) {
+      metrics.finish(GateCheckMetrics.TIMED_OUT, e.getMessage());
+      cancelIfAbandoned(cancellation, metrics, "the quality gate check timed out");
+      throw e;
+    } catch (CircuitOpenException e) {
+      // The server is known to be unavailable
+      metrics.finish(GateCheckMetrics.CIRCUIT_OPEN, e.getMessage());
+      throw e;
+    } catch (WaitAbandonedException e) {
+      metrics.finish(GateCheckMetrics.ERROR, e.getMessage());
+      cancelIfAbandoned(cancellation, metrics, "the quality gate check gave up: " + e.getMessage());
+      throw e;
+    } catch (RuntimeException e) {
+      // The gate failed, or the check did for reasons unrelated to the task, which is left alone
+      metrics.finish(
+          failsQualityGate(metrics) ? GateCheckMetrics.FAILED : GateCheckMetrics.ERROR,
+          e.getMessage());
+      throw e;
+    } finally {
+      cancellation.close();
+      LOGGER.info("{}", metrics.summary());
+    }
+  }
+
+  /** @return whether the check read a quality gate status which breaks the build */
+  private static boolean failsQualityGate(GateCheckMetrics metrics) {
+    return metrics.projectStatus() != null
+        && Status.ERROR.equals(metrics.projectStatus().getStatus());
+  }
+
+  /**
+   * Cancels the older pending tasks of the same project and branch if {@link
+   * BuildBreakerPlugin#SUPERSEDE_PENDING_KEY} is set, so that the Compute Engine only processes the
+   * latest report.
+   */
+  private void supersedePendingTasks(
+      Properties reportTaskProps, Deadline deadline, GateCheckMetrics metrics) {
+    String ceTaskId = reportTaskProps.getProperty("ceTaskId");
+    if (config.getBoolean(BuildBreakerPlugin.SUPERSEDE_PENDING_KEY).orElse(false)
+        && !Strings.isNullOrEmpty(ceTaskId)) {
+      CeTaskSupersession.supersede(
+          newWsClient(getServerUrl(reportTaskProps), deadline, metrics).wsConnector(), ceTaskId);
+    }
+  }
+
+  /**
+   * Cancels the task of a check which stopped waiting for it, e.g. because it timed out, reached
+   * {@link BuildBreakerPlugin#QUERY_MAX_ATTEMPTS_KEY} or was interrupted, rather than because the
+   * quality gate failed.
+   */
+  private static void cancelIfAbandoned(
+      CeTaskCancellation cancellation, GateCheckMetrics metrics, String reason) {
+    if (metrics.analysisId() == null && metrics.projectStatus() == null) {
+      cancellation.cancel(reason);
+    }
+  }
+
+  private void waitAndCheckQualityGate(
+      Properties reportTaskProps,
+      CeQueueBatch queue,
+      WebhookListener webhook,
+      Deadline deadline,
+      GateCheckMetrics metrics) {
+    String serverUrl = getServerUrl(reportTaskProps);
+    GateResultCache resultCache = GateResultCache.fromConfig(config);
+    Optional<ProjectStatus> cachedStatus = resultCache.lookup(serverUrl, reportTaskProps);
+    if (cachedStatus.isPresent()) {
+      metrics.recordSource(GateCheckMetrics.SOURCE_RESULT_CACHE);
+      // Custom metrics are logged by key rather than spend a request on their names
+      checkProjectStatus(cachedStatus.get(), () -> MetricNames.CORE, metrics);
+      return;
+    }
+
+    if (webhook != null) {
+      String ceTaskId = reportTaskProps.getProperty("ceTaskId");
+      LOGGER.info("Waiting for the webhook of report processing...");
+      long start = System.nanoTime();
+      Optional<ProjectStatus> projectStatus = webhook.await(ceTaskId, deadline);
+      metrics.recordWait(millisSince(start));
+      if (projectStatus.isPresent()) {
+        metrics.recordSource(GateCheckMetrics.SOURCE_WEBHOOK);
+        resultCache.store(serverUrl, reportTaskProps, projectStatus.get());
+        checkProjectStatus(
+            projectStatus.get(),
+            () -> MetricNames.fetch(newWsClient(serverUrl, deadline, metrics), config),
+            metrics);
+        return;
+      }
+      LOGGER.info("No webhook received for task {}, falling back to polling", ceTaskId);
+    }
+
+    WsClient wsClient = newWsClient(serverUrl, deadline, metrics);
+
+    CeTaskHistory history = loadCeTaskHistory(reportTaskProps);
+    long start = System.nanoTime();
+    Task task;
+    try {
+      task =
+          waitForTask(
+              wsClient,
+              reportTaskProps.getProperty("ceTaskId"),
+              history.predict(PollingStrategy.fromConfig(config)),
+              queue,
+              startBackpressure(wsClient, history),
+              deadline);
+    } finally {
+      metrics.recordWait(millisSince(start));
+    }
+    metrics.recordTask(task);
+    history.record(task);
+
+    start = System.nanoTime();
+    ProjectStatus projectStatus;
+    try {
+      projectStatus = requestProjectStatus(wsClient, task.getAnalysisId());
+    } finally {
+      metrics.recordQualityGate(millisSince(start));
+    }
+    resultCache.store(serverUrl, reportTaskProps, projectStatus);
+    checkProjectStatus(projectStatus, () -> MetricNames.fetch(wsClient, config), metrics);
+  }
+
+  /**
+   * @return the estimate of the time the task spends in the queue if {@link
+   *     BuildBreakerPlugin#QUEUE_AWARE_KEY} is set, the history tells how long processing takes and
+   *     the queue can be read, otherwise {@code null}
+   */
+  private CeQueueBackpressure startBackpressure(WsClient wsClient, CeTaskHistory history) {
+    long executionTime = history.medianExecutionTime();
+    if (!config.getBoolean(BuildBreakerPlugin.QUEUE_AWARE_KEY).orElse(false) || executionTime < 0) {
+      return null;
+    }
+    return CeQueueBackpressure.start(wsClient.wsConnector(), executionTime).orElse(null);
+  }
+
+  private static long millisSince(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Writes the metrics of each check next to its report task file if {@link
+   * BuildBreakerPlugin#METRICS_KEY} is enabled, those of all checks to {@link
+   * BuildBreakerPlugin#PROMETHEUS_FILE_KEY} if set, and the verdict of all checks and upstream
+   * projects to {@link BuildBreakerPlugin#VERDICT_DIR_KEY} if set.
+   */
+  private void publishMetrics(
+      Map<File, GateCheckMetrics> checks, List<GateCheckMetrics> upstreamResults) {
+    boolean writeJson = config.getBoolean(BuildBreakerPlugin.METRICS_KEY).orElse(false);
+    for (Map.Entry<File, GateCheckMetrics> check : checks.entrySet()) {
+      if (writeJson && check.getKey() != null && check.getValue().outcome() != null) {
+        BuildBreakerCache.store(
+            new File(
+                check.getKey().getAbsoluteFile().getParentFile(), GateCheckMetrics.JSON_FILE_NAME),
+            check.getValue().toJson());
+      }
+    }
+    config
+        .get(BuildBreakerPlugin.PROMETHEUS_FILE_KEY)
+        .ifPresent(
+            file ->
+                BuildBreakerCache.store(
+                    new File(file),
+                    GateCheckMetrics.toPrometheus(
+                        checks.values().stream()
+                            .filter(metrics -> metrics.outcome() != null)
+                            .collect(Collectors.toList()))));
+    Optional<String> verdictDir =
+        config.get(BuildBreakerPlugin.VERDICT_DIR_KEY).filter(dir -> !dir.isEmpty());
+    if (verdictDir.isPresent()) {
+      File dir = new File(verdictDir.get());
+      if (!dir.isAbsolute() && fileSystem != null) {
+        dir = new File(fileSystem.baseDir(), verdictDir.get());
+      }
+      List<GateCheckMetrics> checked =
+          checks.values().stream()
+              .filter(metrics -> metrics.outcome() != null)
+              .collect(Collectors.toList());
+      checked.addAll(upstreamResults);
+      BuildBreakerCache.store(
+          new File(dir, GateVerdictReport.JSON_FILE_NAME), GateVerdictReport.toJson(checked));
+      BuildBreakerCache.store(
+          new File(dir, GateVerdictReport.JUNIT_FILE_NAME), GateVerdictReport.toJUnit(checked));
+    }
+  }
+
+  /**
+   * Checks the quality gates of several analyses concurrently. Tasks on the same server share one
+   * view of the Compute Engine queue, so the total wait is the longest wait rather than the sum.
+   *
+   * @throws IllegalStateException if at least one project does not pass its quality gate
+   */
+  // We have to treat a premature interrupt as a failure since we couldn't check the quality gates.
+  @SuppressWarnings("squid:S2142")
+  void checkReportTasks(List<File> reportTaskFiles) {
+    int parallelism =
+        Math.max(
+            1,
+            Math.min(
+                reportTaskFiles.size(),
+                config.getInt(BuildBreakerPlugin.PARALLELISM_KEY).orElse(1)));
+    LOGGER.info(
+        "Checking the quality gates of {} analyses ({} at a time)",
+        reportTaskFiles.size(),
+        parallelism);
+
+    Deadline deadline = Deadline.fromConfig(config);
+    Map<String, CeQueueBatch> queues = new ConcurrentHashMap<>();
+    Map<File, Future<?>> checks = new LinkedHashMap<>();
+    Map<File, GateCheckMetrics> metrics = new LinkedHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    WebhookListener webhook = WebhookListener.start(config).orElse(null);
+    // The upstream projects are looked up on each server the analyses were sent to
+    Map<String, UpstreamQualityGates> upstreams = new LinkedHashMap<>();
+    List<GateCheckMetrics> upstreamResults = new ArrayList<>();
+    try {
+      for (File reportTaskFile : reportTaskFiles) {
+        Properties reportTaskProps = loadReportTaskProps(reportTaskFile);
+        String serverUrl = getServerUrl(reportTaskProps);
+        upstreams.computeIfAbsent(
+            serverUrl, url -> UpstreamQualityGates.start(config, url, deadline));
+        CeQueueBatch queue =
+            queues.computeIfAbsent(serverUrl, url -> newCeQueueBatch(url, deadline));
+        if (webhook != null) {
+          webhook.expect(
+              reportTaskProps.getProperty("ceTaskId"), reportTaskProps.getProperty("projectKey"));
+        }
+        GateCheckMetrics checkMetrics = new GateCheckMetrics(reportTaskProps);
+        metrics.put(reportTaskFile, checkMetrics);
+        checks.put(
+            reportTaskFile,
+            executor.submit(
+                () -> checkReportTask(reportTaskProps, queue, webhook, deadline, checkMetrics)));
+      }
+
+      List<String> failures = new ArrayList<>();
+      List<String> timedOut = new ArrayList<>();
+      List<String> circuitOpen = new ArrayList<>();
+      CircuitOpenException circuitOpenException = null;
+      for (Map.Entry<File, Future<?>> check : checks.entrySet()) {
+        String projectKey = metrics.get(check.getKey()).projectKey();
+        if (projectKey.isEmpty()) {
+          projectKey = check.getKey().getPath();
+        }
+        try {
+          check.getValue().get();
+          LOGGER.info("{}: passed", projectKey);
+        } catch (ExecutionException e) {
+          LOGGER.error("{}: {}", projectKey, e.getCause().getMessage());
+          if (e.getCause() instanceof DeadlineExceededException) {
+            timedOut.add(projectKey);
+          } else if (e.getCause() instanceof CircuitOpenException) {
+            circuitOpen.add(projectKey);
+            circuitOpenException = (CircuitOpenException) e.getCause();
+          } else {
+            failures.add(projectKey);
+          }
+        }
+      }
+
+      if (!timedOut.isEmpty()) {
+        try {
+          onDeadlineExceeded(new DeadlineExceededException(deadline.timeout()), timedOut);
+        } catch (DeadlineExceededException e) {
+          failures.addAll(timedOut);
+        }
+      }
+
+      if (circuitOpenException != null) {
+        try {
+          onCircuitOpen(circuitOpenException, circuitOpen);
+        } catch (CircuitOpenException e) {
+          failures.addAll(circuitOpen);
+        }
+      }
+
+      int projectCount = checks.size();
+      for (UpstreamQualityGates upstream : upstreams.values()) {
+        upstreamResults.addAll(upstream.results());
+      }
+      failures.addAll(UpstreamQualityGates.failures(upstreamResults));
+      projectCount += upstreamResults.size();
+
+      if (!failures.isEmpty()) {
+        LOGGER.error(
+            "{} {} of {} projects did not pass",
+            BuildBreakerPlugin.LOG_STAMP,
+            failures.size(),
+            projectCount);
+        throw new IllegalStateException(
+            "Projects do not pass the quality gate: " + String.join(", ", failures));
+      }
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      executor.shutdownNow();
+      if (webhook != null) {
+        webhook.close();
+      }
+      publishMetrics(metrics, upstreamResults);
+    }
+  }
+
+  /**
+   * Applies {@link BuildBreakerPlugin#TIMEOUT_OUTCOME_KEY} to checks that did not complete in time.
+   *
+   * @param unchecked the Compute Engine tasks or projects whose quality gate was not checked
+   * @throws DeadlineExceededException if the build must break
+   */
+  private void onDeadlineExceeded(DeadlineExceededException e, List<String> unchecked) {
+    String outcome =
+        config.get(BuildBreakerPlugin.TIMEOUT_OUTCOME_KEY).orElse(Deadline.OUTCOME_FAIL);
+    switch (outcome) {
+      case Deadline.OUTCOME_WARN:
+        LOGGER.warn(
+            "{} {}, quality gate not checked", BuildBreakerPlugin.LOG_STAMP, e.getMessage());
+        break;
+      case Deadline.OUTCOME_PASS:
+        LOGGER.info("{}, quality gate not checked", e.getMessage());
+        writeMarker(TIMEOUT_MARKER_FILE_NAME, e, unchecked);
+        break;
+      default:
+        LOGGER.error(
+            "{} {}.  Try increasing {}.",
+            BuildBreakerPlugin.LOG_STAMP,
+            e.getMessage(),
+            BuildBreakerPlugin.TIMEOUT_KEY);
+        throw e;
+    }
+  }
+
+  /**
+   * Applies {@link BuildBreakerPlugin#CIRCUIT_OPEN_OUTCOME_KEY} to checks that could not be done
+   * because the circuit is open.
+   *
+   * @param unchecked the Compute Engine tasks or projects whose quality gate was not checked
+   * @throws CircuitOpenException if the build must break
+   */
+  private void onCircuitOpen(CircuitOpenException e, List<String> unchecked) {
+    String outcome =
+        config.get(BuildBreakerPlugin.CIRCUIT_OPEN_OUTCOME_KEY).orElse(Deadline.OUTCOME_FAIL);
+    if (!Deadline.OUTCOME_PASS.equals(outcome)) {
+      LOGGER.error("{} {}", BuildBreakerPlugin.LOG_STAMP, e.getMessage());
+      throw e;
+    }
+    LOGGER.warn("{} {}", BuildBreakerPlugin.LOG_STAMP, e.getMessage());
+    LOGGER.warn(
+        "{} QUALITY GATE NOT CHECKED, letting the build pass: {}",
+        BuildBreakerPlugin.LOG_STAMP,
+        String.join(", ", unchecked));
+    writeMarker(CIRCUIT_OPEN_MARKER_FILE_NAME, e, unchecked);
+  }
+
+  /** Records the unchecked analyses of a build that was let through, for a later audit. */
+  private void writeMarker(String fileName, IllegalStateException e, List<String> unchecked) {
+    if (fileSystem != null) {
+      Properties marker = new Properties();
+      marker.setProperty("unchecked", String.join(",", unchecked));
+      marker.setProperty("message", e.getMessage());
+      BuildBreakerCache.store(new File(fileSystem.workDir(), fileName), marker);
+    }
+  }
+
+  /**
+   * @return a view of the server's Compute Engine queue, shared with the other builds of the agent
+   *     if {@link BuildBreakerPlugin#SHARED_POLLING_KEY} is set
+   */
+  private CeQueueBatch newCeQueueBatch(String serverUrl, Deadline deadline) {
+    WsConnector wsConnector = newWsClient(serverUrl, deadline, null).wsConnector();
+    if (!config.getBoolean(BuildBreakerPlugin.SHARED_POLLING_KEY).orElse(false)) {
+      return new CeQueueBatch(wsConnector, QUEUE_MAX_AGE);
+    }
+    // Only the builds using the same credentials share a listing, which they could all read
+    File sharedFile =
+        new File(
+            BuildBreakerCache.getDirectory(config),
+            "ce-queue/"
+                + BuildBreakerCache.toPrivateFileName(
+                    serverUrl, config.get(CoreProperties.LOGIN).orElse("")));
+    long maxAge =
+        Math.max(QUEUE_MAX_AGE, config.getLong(BuildBreakerPlugin.QUERY_INTERVAL_KEY).orElse(0L));
+    return new CeQueueBatch(wsConnector, maxAge, sharedFile);
+  }
+
+  private WsClient newWsClient(String serverUrl, Deadline deadline, GateCheckMetrics metrics) {
+    return WsClientFactories.getDefault()
+        .newClient(new PooledHttpConnector(serverUrl, config, deadline, metrics));
   }
 }
@@ -0,0 +1,103 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.PropertyDefinition;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+/**
+ * The information a detached quality gate check needs to be completed outside of the analysis: the
+ * report task properties, the resolved server URL and the plugin's own settings. Credentials are
+ * only referenced by the name of the environment variable holding them.
+ */
+final class QualityGateHandoff {
+
+  static final String DEFAULT_FILE_NAME = "buildbreaker-handoff.properties";
+
+  static final String SERVER_URL_KEY = "serverUrl";
+
+  private QualityGateHandoff() {
+    // Utility class
+  }
+
+  static void write(
+      File handoffFile, Properties reportTaskProps, String serverUrl, Configuration config) {
+    Properties handoff = new Properties();
+    handoff.putAll(reportTaskProps);
+    handoff.setProperty(SERVER_URL_KEY, serverUrl);
+    for (PropertyDefinition definition : BuildBreakerPlugin.getPropertyDefinitions()) {
+      config.get(definition.key()).ifPresent(value -> handoff.setProperty(definition.key(), value));
+    }
+    // The server URL has already been resolved, and the await step must not detach again
+    handoff.remove(BuildBreakerPlugin.ALTERNATIVE_SERVER_URL_KEY);
+    handoff.remove(BuildBreakerPlugin.DETACHED_KEY);
+    // Secrets stay out of the handoff, and without one the await step must not accept webhooks
+    handoff.remove(BuildBreakerPlugin.WEBHOOK_SECRET_KEY);
+    handoff.remove(BuildBreakerPlugin.WEBHOOK_PORT_KEY);
+
+    try {
+      Files.createDirectories(handoffFile.getAbsoluteFile().getParentFile().toPath());
+      try (Writer writer = Files.newBufferedWriter(handoffFile.toPath(), StandardCharsets.UTF_8)) {
+        handoff.store(writer, "SonarQube Build Breaker handoff");
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write handoff file " + handoffFile, e);
+    }
+  }
+
+  static Properties load(File handoffFile) {
+    Properties handoff = new Properties();
+    try (Reader reader = Files.newBufferedReader(handoffFile.toPath(), StandardCharsets.UTF_8)) {
+      handoff.load(reader);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to load handoff file " + handoffFile, e);
+    }
+    return handoff;
+  }
+
+  /**
+   * Builds the configuration of the await step from the handoff, the plugin's default values and
+   * the credentials found in the environment.
+   */
+  static Configuration toConfiguration(Properties handoff, Map<String, String> environment) {
+    MapSettings settings =
+        new MapSettings(new PropertyDefinitions(BuildBreakerPlugin.getPropertyDefinitions()));
+    settings.addProperties(handoff);
+
+    String credentialsEnv = settings.getString(BuildBreakerPlugin.CREDENTIALS_ENV_KEY);
+    String credentials = credentialsEnv == null ? null : environment.get(credentialsEnv);
+    if (credentials != null && !credentials.isEmpty()) {
+      settings.setProperty(CoreProperties.LOGIN, credentials);
+    }
+    return new ConfigurationBridge(settings);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.MediaTypes;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsResponse;
+
+/**
+ * The current quality gate status of the upstream projects listed in {@link
+ * BuildBreakerPlugin#UPSTREAM_PROJECTS_KEY}, looked up in the background while the analysed project
+ * waits for its own report processing.
+ *
+ * <p>Each entry is a project key, optionally followed by {@code @} and a branch name. Statuses are
+ * cached per server URL, project and branch for {@link BuildBreakerPlugin#UPSTREAM_TTL_KEY}, so
+ * that the builds of several downstream projects share the lookups.
+ */
+final class UpstreamQualityGates {
+
+  private static final Logger LOGGER = Loggers.get(UpstreamQualityGates.class);
+
+  static final char BRANCH_SEPARATOR = '@';
+
+  private static final String STATUS_KEY = "status";
+
+  private static final UpstreamQualityGates NONE =
+      new UpstreamQualityGates(new LinkedHashMap<>(), new LinkedHashMap<>());
+
+  private final Map<String, GateCheckMetrics> results;
+  private final Map<String, CompletableFuture<Status>> lookups;
+
+  private UpstreamQualityGates(
+      Map<String, GateCheckMetrics> results, Map<String, CompletableFuture<Status>> lookups) {
+    this.results = results;
+    this.lookups = lookups;
+  }
+
+  /**
+   * Starts looking up the status of every upstream project in the background.
+   *
+   * @param deadline deadline of the check, which also bounds the lookups
+   */
+  static UpstreamQualityGates start(Configuration config, String serverUrl, Deadline deadline) {
+    String[] upstreamProjects = config.getStringArray(BuildBreakerPlugin.UPSTREAM_PROJECTS_KEY);
+    if (upstreamProjects.length == 0) {
+      return NONE;
+    }
+    long ttl = config.getLong(BuildBreakerPlugin.UPSTREAM_TTL_KEY).orElse(0L);
+    File directory = new File(BuildBreakerCache.getDirectory(config), "upstream");
+    Map<String, GateCheckMetrics> results = new LinkedHashMap<>();
+    Map<String, CompletableFuture<Status>> lookups = new LinkedHashMap<>();
+    for (String upstreamProject : upstreamProjects) {
+      if (!upstreamProject.isEmpty() && !lookups.containsKey(upstreamProject)) {
+        Properties props = new Properties();
+        props.setProperty("projectKey", upstreamProject);
+        GateCheckMetrics result = new GateCheckMetrics(props);
+        result.recordSource(GateCheckMetrics.SOURCE_UPSTREAM);
+        results.put(upstreamProject, result);
+        // Like the connectors of the check, which also share the circuit breaker of the server
+        WsConnector connector = new PooledHttpConnector(serverUrl, config, deadline, result);
+        lookups.put(
+            upstreamProject,
+            lookup(
+                connector,
+                serverUrl,
+                upstreamProject,
+                new File(directory, cacheKey(serverUrl, upstreamProject)),
+                ttl));
+      }
+    }
+    return new UpstreamQualityGates(results, lookups);
+  }
+
+  /**
+   * Waits for the lookups.
+   *
+   * @return the outcome of each upstream project, for the verdict of the build, those that do not
+   *     pass their quality gate or could not be checked being logged as errors
+   */
+  List<GateCheckMetrics> results() {
+    for (Map.Entry<String, GateCheckMetrics> entry : results.entrySet()) {
+      String upstreamProject = entry.getKey();
+      GateCheckMetrics result = entry.getValue();
+      Status status;
+      try {
+        status = lookups.get(upstreamProject).join();
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        LOGGER.error(
+            "{} Unable to check the quality gate of upstream project {}: {}",
+            BuildBreakerPlugin.LOG_STAMP,
+            upstreamProject,
+            cause.getMessage());
+        if (cause instanceof DeadlineExceededException) {
+          result.finish(GateCheckMetrics.TIMED_OUT, cause.getMessage());
+        } else if (cause instanceof CircuitOpenException) {
+          result.finish(GateCheckMetrics.CIRCUIT_OPEN, cause.getMessage());
+        } else {
+          result.finish(GateCheckMetrics.ERROR, cause.getMessage());
+        }
+        continue;
+      }
+      result.recordProjectStatus(
+          ProjectStatusResponse.ProjectStatus.newBuilder().setStatus(status).build(),
+          MetricNames.CORE);
+      switch (status) {
+        case ERROR:
+          LOGGER.error(
+              "{} Upstream project {} does not pass its quality gate",
+              BuildBreakerPlugin.LOG_STAMP,
+              upstreamProject);
+          result.finish(GateCheckMetrics.FAILED, "Upstream project does not pass the quality gate");
+          break;
+        case WARN:
+          LOGGER.warn("Upstream project {} passes its quality gate with warnings", upstreamProject);
+          result.finish(GateCheckMetrics.PASSED, null);
+          break;
+        default:
+          LOGGER.info("Upstream project {} quality gate status: {}", upstreamProject, status);
+          result.finish(GateCheckMetrics.PASSED, null);
+      }
+    }
+    return new ArrayList<>(results.values());
+  }
+
+  /** @return the upstream projects that do not pass their quality gate or could not be checked */
+  static List<String> failures(List<GateCheckMetrics> results) {
+    return results.stream()
+        .filter(result -> !GateCheckMetrics.PASSED.equals(result.outcome()))
+        .map(GateCheckMetrics::projectKey)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @throws IllegalStateException if an upstream project does not pass its quality gate or could
+   *     not be checked
+   */
+  static void check(List<GateCheckMetrics> results) {
+    List<String> failures = failures(results);
+    if (!failures.isEmpty()) {
+      throw new IllegalStateException(
+          "Upstream projects do not pass the quality gate: " + String.join(", ", failures));
+    }
+  }
+
+  /** The file name of a lookup, which does not disclose the project key. */
+  private static String cacheKey(String serverUrl, String upstreamProject) {
+    return BuildBreakerCache.toPrivateFileName(serverUrl, upstreamProject);
+  }
+
+  private static CompletableFuture<Status> lookup(
+      WsConnector connector, String serverUrl, String upstreamProject, File cacheFile, long ttl) {
+    if (cacheFile.isFile() && System.currentTimeMillis() - cacheFile.lastModified() < ttl) {
+      try {
+        return CompletableFuture.completedFuture(
+            Status.valueOf(BuildBreakerCache.load(cacheFile).getProperty(STATUS_KEY, "")));
+      } catch (IllegalArgumentException e) {
+        LOGGER.debug("Ignoring invalid quality gate status in {}", cacheFile);
+      }
+    }
+
+    int separator = upstreamProject.indexOf(BRANCH_SEPARATOR);
+    GetRequest request =
+        new GetRequest("api/qualitygates/project_status").setMediaType(MediaTypes.PROTOBUF);
+    if (separator < 0) {
+      request.setParam("projectKey", upstreamProject);
+    } else {
+      request
+          .setParam("projectKey", upstreamProject.substring(0, separator))
+          .setParam("branch", upstreamProject.substring(separator + 1));
+    }
+    LOGGER.debug(
+        "Looking up the quality gate of upstream project {} on {}", upstreamProject, serverUrl);
+    return CompletableFuture.supplyAsync(
+        () -> {
+          WsResponse response = connector.call(request);
+          if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new IllegalStateException("project or branch not found");
+          } else if (!response.isSuccessful()) {
+            throw new IllegalStateException("HTTP " + response.code());
+          }
+          Status status;
+          try {
+            status =
+                ProjectStatusResponse.parseFrom(response.contentStream())
+                    .getProjectStatus()
+                    .getStatus();
+          } catch (IOException e) {
+            throw new IllegalStateException("unexpected response: " + e.getMessage(), e);
+          }
+          if (ttl > 0) {
+            Properties cached = new Properties();
+            cached.setProperty(STATUS_KEY, status.name());
+            BuildBreakerCache.store(cacheFile, cached);
+          }
+          return status;
+        });
+  }
+}
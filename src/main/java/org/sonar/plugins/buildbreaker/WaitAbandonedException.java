@@ -0,0 +1,39 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+/**
+ * Thrown when the quality gate check gives up waiting for the report processing task although the
+ * task itself did not fail, i.e. when it reaches {@link BuildBreakerPlugin#QUERY_MAX_ATTEMPTS_KEY}
+ * or is interrupted, which {@link BuildBreakerPlugin#CANCEL_ON_ABORT_KEY} turns into a canceled
+ * task.
+ */
+class WaitAbandonedException extends IllegalStateException {
+
+  private static final long serialVersionUID = 1L;
+
+  WaitAbandonedException(String message) {
+    super(message);
+  }
+
+  WaitAbandonedException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static com.google.common.base.Strings.nullToEmpty;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Comparator;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+/**
+ * Receives the payloads of a SonarQube project webhook, so that the quality gate status is pushed
+ * as soon as the Compute Engine is done instead of being polled for.
+ *
+ * <p>The webhook has to be configured on the server, pointing to this listener, with a secret:
+ * payloads without a valid {@code X-Sonar-Webhook-HMAC-SHA256} signature are rejected, and so are
+ * payloads of tasks which are not {@link #expect expected} or whose project is not the expected
+ * one.
+ */
+final class WebhookListener implements Closeable {
+
+  private static final Logger LOGGER = Loggers.get(WebhookListener.class);
+
+  static final String HMAC_HEADER = "X-Sonar-Webhook-HMAC-SHA256";
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  /** Webhook payloads are a few kilobytes, larger bodies are rejected before they are read */
+  static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+  private static final int HTTP_ENTITY_TOO_LARGE = 413;
+
+  private final HttpServer server;
+  private final String secret;
+  private final long timeout;
+  // The project key of each expected task
+  private final Map<String, String> projectKeys = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<ProjectStatus>> notifications =
+      new ConcurrentHashMap<>();
+
+  private WebhookListener(HttpServer server, String secret, long timeout) {
+    this.server = server;
+    this.secret = secret;
+    this.timeout = timeout;
+  }
+
+  /** @return a started listener, or empty if no webhook port is configured */
+  static Optional<WebhookListener> start(Configuration config) {
+    Optional<Integer> port = config.getInt(BuildBreakerPlugin.WEBHOOK_PORT_KEY);
+    if (!port.isPresent()) {
+      return Optional.empty();
+    }
+    // Anyone able to reach the listener could otherwise decide whether the build passes
+    String secret = config.get(BuildBreakerPlugin.WEBHOOK_SECRET_KEY).orElse("");
+    if (secret.isEmpty()) {
+      throw new IllegalStateException(
+          BuildBreakerPlugin.WEBHOOK_PORT_KEY
+              + " requires "
+              + BuildBreakerPlugin.WEBHOOK_SECRET_KEY
+              + " to be set");
+    }
+    String address = config.get(BuildBreakerPlugin.WEBHOOK_ADDRESS_KEY).orElse("127.0.0.1");
+    String path = config.get(BuildBreakerPlugin.WEBHOOK_PATH_KEY).orElse("/buildbreaker");
+
+    HttpServer server;
+    try {
+      server = HttpServer.create(new InetSocketAddress(address, port.get()), 0);
+    } catch (IOException e) {
+      throw new IllegalStateException(
+          "Unable to listen for webhooks on " + address + ":" + port.get(), e);
+    }
+    WebhookListener listener =
+        new WebhookListener(
+            server, secret, config.getLong(BuildBreakerPlugin.WEBHOOK_TIMEOUT_KEY).orElse(0L));
+    server.createContext(path, listener::handle);
+    server.start();
+    LOGGER.debug(
+        "Listening for webhooks on {}:{} at {}", address, server.getAddress().getPort(), path);
+    return Optional.of(listener);
+  }
+
+  /**
+   * Accepts the webhook of the given Compute Engine task from now on, provided it is about the
+   * given project. The webhooks of other tasks are ignored.
+   */
+  void expect(String ceTaskId, String projectKey) {
+    projectKeys.put(ceTaskId, nullToEmpty(projectKey));
+    notification(ceTaskId);
+  }
+
+  int port() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Waits until the webhook of the given Compute Engine task is received, or the configured timeout
+   * elapses, or the deadline of the whole check.
+   *
+   * @return the quality gate status, or empty if no webhook has been received in time
+   */
+  // We have to treat a premature interrupt as a failure since we couldn't get the gate status.
+  @SuppressWarnings("squid:S2142")
+  Optional<ProjectStatus> await(String ceTaskId, Deadline deadline) {
+    CompletableFuture<ProjectStatus> notification = notifications.get(ceTaskId);
+    if (notification == null) {
+      LOGGER.debug("Task {} was not expected, not waiting for its webhook", ceTaskId);
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(notification.get(deadline.cap(timeout), TimeUnit.MILLISECONDS));
+    } catch (TimeoutException e) {
+      return Optional.empty();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      throw new WaitAbandonedException(e.getMessage(), e);
+    }
+  }
+
+  private CompletableFuture<ProjectStatus> notification(String ceTaskId) {
+    // Payloads may arrive after the task is expected but before anyone waits for them
+    return notifications.computeIfAbsent(ceTaskId, id -> new CompletableFuture<>());
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (InputStream body = exchange.getRequestBody()) {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+        return;
+      }
+      byte[] payload =
+          isTooLarge(exchange.getRequestHeaders().getFirst("Content-Length"))
+              ? null
+              : ByteStreams.toByteArray(ByteStreams.limit(body, MAX_PAYLOAD_SIZE + 1L));
+      if (payload == null || payload.length > MAX_PAYLOAD_SIZE) {
+        LOGGER.warn("Ignoring webhook larger than {} bytes", MAX_PAYLOAD_SIZE);
+        exchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+        return;
+      }
+      if (!isValidSignature(secret, payload, exchange.getRequestHeaders().getFirst(HMAC_HEADER))) {
+        LOGGER.warn("Ignoring webhook with an invalid {} header", HMAC_HEADER);
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAUTHORIZED, -1);
+        return;
+      }
+
+      JsonObject json;
+      try {
+        json =
+            new JsonParser().parse(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+      } catch (JsonParseException | IllegalStateException e) {
+        LOGGER.debug("Ignoring malformed webhook payload: {}", e.getMessage());
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+        return;
+      }
+
+      String taskId = getString(json, "taskId");
+      String projectKey = taskId == null ? null : projectKeys.get(taskId);
+      if (projectKey == null) {
+        // Only expected tasks are kept track of, so that payloads cannot pile up
+        LOGGER.debug("Ignoring webhook of unexpected task {}", taskId);
+      } else if (!projectKey.equals(getProjectKey(json))) {
+        LOGGER.warn(
+            "Ignoring webhook of task {} for project {} instead of {}",
+            taskId,
+            getProjectKey(json),
+            projectKey);
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+        return;
+      } else {
+        CompletableFuture<ProjectStatus> notification = notification(taskId);
+        String taskStatus = getString(json, "status");
+        if ("SUCCESS".equals(taskStatus)) {
+          notification.complete(toProjectStatus(json.getAsJsonObject("qualityGate")));
+        } else {
+          notification.completeExceptionally(
+              new IllegalStateException(
+                  "Report processing did not complete successfully: " + taskStatus));
+        }
+      }
+      exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static boolean isTooLarge(String contentLength) {
+    try {
+      return contentLength != null && Long.parseLong(contentLength.trim()) > MAX_PAYLOAD_SIZE;
+    } catch (NumberFormatException e) {
+      // The read is limited anyway
+      return false;
+    }
+  }
+
+  private static String getProjectKey(JsonObject json) {
+    JsonElement project = json.get("project");
+    return project != null && project.isJsonObject()
+        ? getString(project.getAsJsonObject(), "key")
+        : null;
+  }
+
+  @VisibleForTesting
+  static boolean isValidSignature(String secret, byte[] payload, String signature) {
+    if (signature == null) {
+      return false;
+    }
+    return MessageDigest.isEqual(
+        sign(secret, payload).getBytes(StandardCharsets.US_ASCII),
+        signature.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @VisibleForTesting
+  static String sign(String secret, byte[] payload) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : mac.doFinal(payload)) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to compute the webhook signature", e);
+    }
+  }
+
+  /** Converts the {@code qualityGate} object of a webhook payload. */
+  @VisibleForTesting
+  static ProjectStatus toProjectStatus(JsonObject qualityGate) {
+    ProjectStatus.Builder projectStatus = ProjectStatus.newBuilder();
+    if (qualityGate == null) {
+      return projectStatus.setStatus(Status.NONE).build();
+    }
+    projectStatus.setStatus(toStatus(getString(qualityGate, "status")));
+
+    if (qualityGate.has("conditions")) {
+      for (JsonElement element : qualityGate.getAsJsonArray("conditions")) {
+        JsonObject condition = element.getAsJsonObject();
+        Condition.Builder builder =
+            Condition.newBuilder()
+                .setStatus(toStatus(getString(condition, "status")))
+                .setMetricKey(nullToEmpty(getString(condition, "metric")))
+                .setActualValue(nullToEmpty(getString(condition, "value")))
+                .setErrorThreshold(nullToEmpty(getString(condition, "errorThreshold")))
+                .setWarningThreshold(nullToEmpty(getString(condition, "warningThreshold")));
+        Comparator comparator = toComparator(getString(condition, "operator"));
+        if (comparator != null) {
+          builder.setComparator(comparator);
+        }
+        projectStatus.addConditions(builder);
+      }
+    }
+    return projectStatus.build();
+  }
+
+  private static Status toStatus(String status) {
+    if (status == null) {
+      return Status.NONE;
+    }
+    switch (status) {
+      case "OK":
+        return Status.OK;
+      case "WARN":
+        return Status.WARN;
+      case "ERROR":
+        return Status.ERROR;
+      default:
+        return Status.NONE;
+    }
+  }
+
+  private static Comparator toComparator(String operator) {
+    if (operator == null) {
+      return null;
+    }
+    switch (operator) {
+      case "GREATER_THAN":
+        return Comparator.GT;
+      case "LESS_THAN":
+        return Comparator.LT;
+      case "EQUALS":
+        return Comparator.EQ;
+      case "NOT_EQUALS":
+        return Comparator.NE;
+      default:
+        return null;
+    }
+  }
+
+  private static String getString(JsonObject json, String member) {
+    JsonElement element = json.get(member);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
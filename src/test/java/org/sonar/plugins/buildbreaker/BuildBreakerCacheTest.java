@@ -0,0 +1,70 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class BuildBreakerCacheTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void setup() throws IOException {
+    dir = temp.newFolder();
+    assumeTrue(
+        Files.getFileStore(dir.toPath()).supportsFileAttributeView(PosixFileAttributeView.class));
+  }
+
+  @Test
+  public void shouldWriteReadableFile() throws IOException {
+    File file = new File(dir, "verdict.json");
+
+    BuildBreakerCache.store(file, "{}");
+
+    assertEquals("{}", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    assertEquals(
+        "rw-r--r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+  }
+
+  @Test
+  public void shouldKeepPermissionsOfReplacedFile() throws IOException {
+    File file = new File(dir, "verdict.json");
+    BuildBreakerCache.store(file, "{}");
+    Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-rw----"));
+
+    BuildBreakerCache.store(file, "[]");
+
+    assertEquals(
+        "rw-rw----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonarqube.ws.Ce.ActivityStatusWsResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+public final class CeQueueBackpressureTest {
+
+  private WsConnector wsConnector;
+  private WsResponse wsResponse;
+
+  @Before
+  public void setup() {
+    wsConnector = mock(WsConnector.class);
+    wsResponse = mock(WsResponse.class);
+    when(wsConnector.call(any(WsRequest.class))).thenReturn(wsResponse);
+  }
+
+  @Test
+  public void testDeepTaskIsPolledRarely() {
+    respondWith(41, 4);
+    CeQueueBackpressure backpressure = CeQueueBackpressure.start(wsConnector, 10_000).get();
+
+    // 40 tasks ahead on 4 workers, then the task itself
+    assertEquals(110_000, backpressure.expectedWait(), 1_000);
+    assertEquals(50_000, backpressure.nextDelay(TaskStatus.PENDING, 5_000), 1_000);
+    verify(wsConnector, times(1)).call(any(WsRequest.class));
+  }
+
+  @Test
+  public void testStrategyDelayAppliesAtTheFront() {
+    respondWith(1, 0);
+    CeQueueBackpressure backpressure = CeQueueBackpressure.start(wsConnector, 10_000).get();
+
+    assertEquals(10_000, backpressure.expectedWait(), 1_000);
+    assertEquals(5_000, backpressure.nextDelay(TaskStatus.PENDING, 5_000));
+  }
+
+  @Test
+  public void testStrategyDelayAppliesInProgress() {
+    respondWith(101, 1);
+    CeQueueBackpressure backpressure = CeQueueBackpressure.start(wsConnector, 10_000).get();
+
+    assertEquals(5_000, backpressure.nextDelay(TaskStatus.IN_PROGRESS, 5_000));
+  }
+
+  @Test
+  public void testQueueIsReadAgainWhenStillPendingAtTheFront() throws InterruptedException {
+    respondWith(1, 1);
+    CeQueueBackpressure backpressure = CeQueueBackpressure.start(wsConnector, 10).get();
+    Thread.sleep(50);
+    respondWith(3, 1);
+
+    long delay = backpressure.nextDelay(TaskStatus.PENDING, 0);
+
+    verify(wsConnector, times(2)).call(any(WsRequest.class));
+    assertTrue(delay > 0);
+  }
+
+  @Test
+  public void testUnreadableQueueIsIgnored() {
+    when(wsResponse.isSuccessful()).thenReturn(false);
+    when(wsResponse.code()).thenReturn(403);
+
+    assertFalse(CeQueueBackpressure.start(wsConnector, 10_000).isPresent());
+  }
+
+  private void respondWith(int pending, int inProgress) {
+    ActivityStatusWsResponse status =
+        ActivityStatusWsResponse.newBuilder().setPending(pending).setInProgress(inProgress).build();
+    when(wsResponse.isSuccessful()).thenReturn(true);
+    when(wsResponse.contentStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream(status.toByteArray()));
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarqube.ws.Ce.ActivityResponse;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.client.WsConnector;
+import org.sonarqube.ws.client.WsRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+public final class CeQueueBatchTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private WsConnector wsConnector;
+  private WsResponse wsResponse;
+
+  @Before
+  public void setup() {
+    wsConnector = mock(WsConnector.class);
+    wsResponse = mock(WsResponse.class);
+    when(wsConnector.call(any(WsRequest.class))).thenReturn(wsResponse);
+  }
+
+  @Test
+  public void testQueuedTasksAreReportedFromOneListing() {
+    respondWith(
+        ActivityResponse.newBuilder()
+            .addTasks(Task.newBuilder().setId("a").setStatus(TaskStatus.PENDING))
+            .addTasks(Task.newBuilder().setId("b").setStatus(TaskStatus.IN_PROGRESS))
+            .build());
+    CeQueueBatch queue = new CeQueueBatch(wsConnector, 60_000);
+
+    assertEquals(Optional.of(TaskStatus.PENDING), queue.currentStatus("a"));
+    assertEquals(Optional.of(TaskStatus.IN_PROGRESS), queue.currentStatus("b"));
+    assertEquals(Optional.empty(), queue.currentStatus("c"));
+    verify(wsConnector, times(1)).call(any(WsRequest.class));
+  }
+
+  @Test
+  public void testListingIsRefreshedWhenStale() {
+    respondWith(ActivityResponse.getDefaultInstance());
+    CeQueueBatch queue = new CeQueueBatch(wsConnector, -1);
+
+    queue.currentStatus("a");
+    queue.currentStatus("a");
+
+    verify(wsConnector, times(2)).call(any(WsRequest.class));
+  }
+
+  @Test
+  public void testFullPageIsInconclusive() {
+    ActivityResponse.Builder activity = ActivityResponse.newBuilder();
+    for (int i = 0; i < CeQueueBatch.PAGE_SIZE; i++) {
+      activity.addTasks(Task.newBuilder().setId("task" + i).setStatus(TaskStatus.PENDING));
+    }
+    respondWith(activity.build());
+
+    assertFalse(new CeQueueBatch(wsConnector, 60_000).currentStatus("task0").isPresent());
+  }
+
+  @Test
+  public void testForbiddenListingIsNotRetried() {
+    when(wsResponse.isSuccessful()).thenReturn(false);
+    when(wsResponse.code()).thenReturn(403);
+    CeQueueBatch queue = new CeQueueBatch(wsConnector, -1);
+
+    assertFalse(queue.currentStatus("a").isPresent());
+    assertFalse(queue.currentStatus("a").isPresent());
+    verify(wsConnector, times(1)).call(any(WsRequest.class));
+  }
+
+  @Test
+  public void testSharedListingIsReadByOtherBuilds() throws IOException {
+    respondWith(
+        ActivityResponse.newBuilder()
+            .addTasks(Task.newBuilder().setId("a").setStatus(TaskStatus.PENDING))
+            .addTasks(Task.newBuilder().setId("b").setStatus(TaskStatus.IN_PROGRESS))
+            .build());
+    File sharedFile = new File(temp.newFolder(), "queue");
+    WsConnector otherConnector = mock(WsConnector.class);
+
+    assertEquals(
+        Optional.of(TaskStatus.PENDING),
+        new CeQueueBatch(wsConnector, 60_000, sharedFile).currentStatus("a"));
+    CeQueueBatch other = new CeQueueBatch(otherConnector, 60_000, sharedFile);
+    assertEquals(Optional.of(TaskStatus.IN_PROGRESS), other.currentStatus("b"));
+    assertEquals(Optional.empty(), other.currentStatus("c"));
+
+    verify(wsConnector, times(1)).call(any(WsRequest.class));
+    verify(otherConnector, never()).call(any(WsRequest.class));
+  }
+
+  @Test
+  public void testOutdatedSharedListingIsRefreshed() throws IOException {
+    respondWith(ActivityResponse.getDefaultInstance());
+    File sharedFile = new File(temp.newFolder(), "queue");
+
+    new CeQueueBatch(wsConnector, 60_000, sharedFile).currentStatus("a");
+    new CeQueueBatch(wsConnector, -1, sharedFile).currentStatus("a");
+
+    verify(wsConnector, times(2)).call(any(WsRequest.class));
+  }
+
+  @Test
+  public void testForbiddenListingIsShared() throws IOException {
+    when(wsResponse.isSuccessful()).thenReturn(false);
+    when(wsResponse.code()).thenReturn(403);
+    File sharedFile = new File(temp.newFolder(), "queue");
+    WsConnector otherConnector = mock(WsConnector.class);
+
+    assertFalse(new CeQueueBatch(wsConnector, 60_000, sharedFile).currentStatus("a").isPresent());
+    assertFalse(
+        new CeQueueBatch(otherConnector, 60_000, sharedFile).currentStatus("a").isPresent());
+    verify(otherConnector, never()).call(any(WsRequest.class));
+  }
+
+  private void respondWith(ActivityResponse activity) {
+    when(wsResponse.isSuccessful()).thenReturn(true);
+    when(wsResponse.contentStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream(activity.toByteArray()));
+  }
+}
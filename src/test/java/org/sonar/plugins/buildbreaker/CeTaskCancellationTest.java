@@ -0,0 +1,206 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+
+public final class CeTaskCancellationTest {
+
+  private static final String TEST_TASK_ID = "Abc123";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  // The body of every cancellation request
+  private final List<String> cancellations = new CopyOnWriteArrayList<>();
+
+  private int responseCode = 204;
+  private HttpServer server;
+  private MapSettings settings;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/ce/cancel", this::respond);
+    server.createContext("/api/ce/task", this::respondFailedTask);
+    server.start();
+
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.CANCEL_ON_ABORT_KEY, true);
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, temp.newFolder().getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    cancellations.add(
+        exchange.getRequestMethod()
+            + " "
+            + new String(
+                ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+    exchange.sendResponseHeaders(responseCode, -1);
+    exchange.close();
+  }
+
+  private void respondFailedTask(HttpExchange exchange) throws IOException {
+    byte[] content =
+        TaskResponse.newBuilder()
+            .setTask(Task.newBuilder().setId(TEST_TASK_ID).setStatus(TaskStatus.FAILED))
+            .build()
+            .toByteArray();
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  private String serverUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  private CeTaskCancellation register() {
+    return CeTaskCancellation.register(
+        new ConfigurationBridge(settings), serverUrl(), TEST_TASK_ID);
+  }
+
+  @Test
+  public void shouldCancelTaskOnce() {
+    try (CeTaskCancellation cancellation = register()) {
+      cancellation.cancel("the check timed out");
+      cancellation.cancel("the build was aborted");
+    }
+
+    assertEquals(1, cancellations.size());
+    assertEquals("POST id=" + TEST_TASK_ID, cancellations.get(0));
+  }
+
+  @Test
+  public void shouldNotCancelTaskOnceClosed() {
+    CeTaskCancellation cancellation = register();
+    cancellation.close();
+    cancellation.cancel("the build was aborted");
+
+    assertTrue(cancellations.isEmpty());
+  }
+
+  @Test
+  public void shouldNotCancelTaskIfDisabled() {
+    settings.setProperty(BuildBreakerPlugin.CANCEL_ON_ABORT_KEY, false);
+
+    try (CeTaskCancellation cancellation = register()) {
+      cancellation.cancel("the check timed out");
+    }
+
+    assertTrue(cancellations.isEmpty());
+  }
+
+  @Test
+  public void shouldIgnoreFailedCancellation() {
+    responseCode = 403;
+
+    try (CeTaskCancellation cancellation = register()) {
+      cancellation.cancel("the check timed out");
+    }
+    // no exception expected
+
+    assertEquals(1, cancellations.size());
+  }
+
+  @Test
+  public void shouldCancelTaskWhenQualityGateCheckGivesUp() {
+    // Without any attempt, the query limit is reached right away
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("ceTaskId", TEST_TASK_ID);
+    reportTaskProps.setProperty("serverUrl", serverUrl());
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Report processing is taking longer than the configured wait limit.");
+
+    try {
+      new QualityGateBreaker(null, new ConfigurationBridge(settings))
+          .checkReportTask(reportTaskProps);
+    } finally {
+      assertEquals(1, cancellations.size());
+    }
+  }
+
+  @Test
+  public void shouldNotCancelFailedTask() {
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, 1);
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("ceTaskId", TEST_TASK_ID);
+    reportTaskProps.setProperty("serverUrl", serverUrl());
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Report processing did not complete successfully: FAILED");
+
+    try {
+      new QualityGateBreaker(null, new ConfigurationBridge(settings))
+          .checkReportTask(reportTaskProps);
+    } finally {
+      assertTrue(cancellations.isEmpty());
+    }
+  }
+
+  @Test
+  public void shouldNotCancelTaskWhenServerIsUnreachable() {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("ceTaskId", TEST_TASK_ID);
+    reportTaskProps.setProperty("serverUrl", serverUrl());
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, 1);
+    server.removeContext("/api/ce/task");
+
+    thrown.expect(IllegalStateException.class);
+
+    try {
+      new QualityGateBreaker(null, new ConfigurationBridge(settings))
+          .checkReportTask(reportTaskProps);
+    } finally {
+      assertTrue(cancellations.isEmpty());
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskStatus;
+
+public final class CeTaskHistoryTest {
+  private static final String SERVER_URL = "http://localhost:9000";
+  private static final String PROJECT_KEY = "group:artifact";
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before
+  public void setup() throws IOException {
+    cacheDir = temp.newFolder();
+  }
+
+  @Test
+  public void testRecordAndReload() {
+    CeTaskHistory history = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 10);
+    history.record(
+        Task.newBuilder()
+            .setStatus(TaskStatus.SUCCESS)
+            .setSubmittedAt("2018-08-10T17:37:00+0200")
+            .setStartedAt("2018-08-10T17:37:02+0200")
+            .setExecutionTimeMs(1500)
+            .build());
+
+    CeTaskHistory reloaded = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 10);
+    assertEquals(1, reloaded.sampleCount());
+    assertEquals(3500, reloaded.predict(PollingStrategy.fixed(10000)).initialDelay());
+  }
+
+  @Test
+  public void testTaskWithoutTimingsIsIgnored() {
+    CeTaskHistory history = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 10);
+    history.record(Task.newBuilder().setStatus(TaskStatus.SUCCESS).build());
+
+    assertEquals(0, CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 10).sampleCount());
+  }
+
+  @Test
+  public void testHistoryIsBounded() {
+    CeTaskHistory history = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 3);
+    for (int i = 0; i < 5; i++) {
+      history.add(i, i);
+    }
+
+    assertEquals(3, history.sampleCount());
+  }
+
+  @Test
+  public void testDisabledHistoryDoesNotPredict() {
+    PollingStrategy delegate = PollingStrategy.fixed(10000);
+    CeTaskHistory history = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 0);
+    history.add(1000, 1000);
+
+    assertEquals(0, history.sampleCount());
+    assertSame(delegate, history.predict(delegate));
+  }
+
+  @Test
+  public void testPrediction() {
+    CeTaskHistory history = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 10);
+    history.add(1000, 4000);
+    history.add(2000, 5000);
+    history.add(1000, 3000);
+    history.add(1000, 11000);
+
+    PollingStrategy strategy = history.predict(PollingStrategy.fixed(10000));
+
+    assertEquals(5000, strategy.initialDelay());
+    // 90th percentile total is 12000, median total is 5000
+    assertEquals(7000, strategy.nextDelay(0));
+    assertEquals(7000, strategy.nextDelay(2));
+    assertEquals(10000, strategy.nextDelay(3));
+  }
+
+  @Test
+  public void testPredictionNeverPollsTooOften() {
+    CeTaskHistory history = CeTaskHistory.load(cacheDir, SERVER_URL, PROJECT_KEY, 10);
+    history.add(100, 100);
+    history.add(100, 100);
+
+    assertEquals(1000, history.predict(PollingStrategy.fixed(10000)).nextDelay(0));
+  }
+
+  @Test
+  public void testPercentile() {
+    assertEquals(2, CeTaskHistory.percentile(asList(3L, 1L, 2L), 50));
+    assertEquals(3, CeTaskHistory.percentile(asList(3L, 1L, 2L), 90));
+    assertEquals(1, CeTaskHistory.percentile(asList(3L, 1L, 2L), 0));
+  }
+}
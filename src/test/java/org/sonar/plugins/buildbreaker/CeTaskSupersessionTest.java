@@ -0,0 +1,187 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.Ce.ActivityResponse;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.Common.BranchType;
+
+public final class CeTaskSupersessionTest {
+
+  private static final String TEST_TASK_ID = "Abc123";
+
+  // The tasks of the server, by id
+  private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+
+  // The ids of the canceled tasks
+  private final List<String> canceled = new CopyOnWriteArrayList<>();
+
+  private int activityResponseCode = 200;
+  private HttpServer server;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/ce/task", this::respondTask);
+    server.createContext("/api/ce/activity", this::respondActivity);
+    server.createContext("/api/ce/cancel", this::respondCancel);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void respondTask(HttpExchange exchange) throws IOException {
+    String id = exchange.getRequestURI().getQuery().substring("id=".length());
+    send(exchange, TaskResponse.newBuilder().setTask(tasks.get(id)).build().toByteArray());
+  }
+
+  private void respondActivity(HttpExchange exchange) throws IOException {
+    if (activityResponseCode != 200) {
+      exchange.sendResponseHeaders(activityResponseCode, -1);
+      exchange.close();
+      return;
+    }
+    String query = exchange.getRequestURI().getQuery();
+    ActivityResponse.Builder activity = ActivityResponse.newBuilder();
+    tasks.values().stream()
+        .filter(task -> query.contains("componentId=" + task.getComponentId()))
+        .filter(task -> task.getStatus() == TaskStatus.PENDING)
+        .forEach(activity::addTasks);
+    send(exchange, activity.build().toByteArray());
+  }
+
+  private void respondCancel(HttpExchange exchange) throws IOException {
+    String body =
+        new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+    canceled.add(body.substring("id=".length()));
+    exchange.sendResponseHeaders(204, -1);
+    exchange.close();
+  }
+
+  private static void send(HttpExchange exchange, byte[] content) throws IOException {
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  private void addTask(String id, String componentId, String branch, String submittedAt) {
+    tasks.put(
+        id,
+        Task.newBuilder()
+            .setId(id)
+            .setType("REPORT")
+            .setComponentId(componentId)
+            .setComponentKey(componentId)
+            .setStatus(TaskStatus.PENDING)
+            .setBranch(branch)
+            .setBranchType(BranchType.LONG)
+            .setSubmittedAt(submittedAt)
+            .build());
+  }
+
+  private List<String> supersede() {
+    return CeTaskSupersession.supersede(
+        new PooledHttpConnector(
+            "http://localhost:" + server.getAddress().getPort(),
+            new ConfigurationBridge(new MapSettings())),
+        TEST_TASK_ID);
+  }
+
+  @Test
+  public void shouldCancelOlderPendingTasksOfSameBranch() {
+    addTask(TEST_TASK_ID, "project", "main", "2018-08-01T12:00:10+0000");
+    addTask("older-1", "project", "main", "2018-08-01T12:00:00+0000");
+    addTask("older-2", "project", "main", "2018-08-01T11:00:00+0000");
+    addTask("newer", "project", "main", "2018-08-01T12:00:20+0000");
+    addTask("same-second", "project", "main", "2018-08-01T12:00:10+0000");
+    addTask("other-branch", "project", "feature", "2018-08-01T12:00:00+0000");
+    addTask("other-project", "other", "main", "2018-08-01T12:00:00+0000");
+
+    List<String> superseded = supersede();
+
+    Collections.sort(superseded);
+    assertEquals(Arrays.asList("older-1", "older-2"), superseded);
+    assertEquals(2, canceled.size());
+    assertTrue(canceled.containsAll(superseded));
+  }
+
+  @Test
+  public void shouldNotCancelAnythingOnceTaskIsProcessed() {
+    addTask(TEST_TASK_ID, "project", "main", "2018-08-01T12:00:10+0000");
+    addTask("older", "project", "main", "2018-08-01T12:00:00+0000");
+    tasks.put(
+        TEST_TASK_ID,
+        tasks.get(TEST_TASK_ID).toBuilder().setStatus(TaskStatus.IN_PROGRESS).build());
+
+    assertTrue(supersede().isEmpty());
+    assertTrue(canceled.isEmpty());
+  }
+
+  @Test
+  public void shouldIgnoreMissingPermission() {
+    activityResponseCode = 403;
+    addTask(TEST_TASK_ID, "project", "main", "2018-08-01T12:00:10+0000");
+    addTask("older", "project", "main", "2018-08-01T12:00:00+0000");
+
+    assertTrue(supersede().isEmpty());
+    assertTrue(canceled.isEmpty());
+  }
+
+  @Test(expected = DeadlineExceededException.class)
+  public void shouldGiveUpWhenDeadlineIsExceeded() {
+    addTask(TEST_TASK_ID, "project", "main", "2018-08-01T12:00:10+0000");
+
+    CeTaskSupersession.supersede(
+        new PooledHttpConnector(
+            "http://localhost:" + server.getAddress().getPort(),
+            new ConfigurationBridge(new MapSettings()),
+            Deadline.after(0),
+            new GateCheckMetrics(new Properties())),
+        TEST_TASK_ID);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.client.GetRequest;
+
+public final class CircuitBreakerTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private HttpServer server;
+  private String serverUrl;
+  private MapSettings settings;
+  private volatile int responseCode = 503;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/api/ce/task",
+        exchange -> {
+          requests.incrementAndGet();
+          exchange.sendResponseHeaders(responseCode, -1);
+          exchange.close();
+        });
+    server.start();
+    serverUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_BREAKER_KEY, true);
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_FAILURE_RATE_KEY, 50);
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY, 60000L);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private Configuration config() {
+    return new ConfigurationBridge(settings);
+  }
+
+  /** A new connector behaves like another build on the same agent. */
+  private int call() {
+    return new PooledHttpConnector(serverUrl, config())
+        .call(new GetRequest("api/ce/task").setParam("id", "task"))
+        .code();
+  }
+
+  private void openCircuit() {
+    for (int i = 0; i < CircuitBreaker.MINIMUM_REQUESTS; i++) {
+      call();
+    }
+  }
+
+  @Test
+  public void shouldNotOpenWhenDisabled() {
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_BREAKER_KEY, false);
+
+    openCircuit();
+    call();
+
+    assertEquals(CircuitBreaker.MINIMUM_REQUESTS + 1, requests.get());
+  }
+
+  @Test
+  public void shouldNotOpenBelowFailureRate() {
+    responseCode = 200;
+    for (int i = 0; i < CircuitBreaker.WINDOW_SIZE - 1; i++) {
+      call();
+    }
+    responseCode = 503;
+    for (int i = 0; i < CircuitBreaker.WINDOW_SIZE / 2; i++) {
+      call();
+    }
+
+    assertEquals(CircuitBreaker.WINDOW_SIZE - 1 + CircuitBreaker.WINDOW_SIZE / 2, requests.get());
+  }
+
+  @Test
+  public void shouldFailFastOnceOpen() {
+    openCircuit();
+
+    thrown.expect(CircuitOpenException.class);
+    thrown.expectMessage("Circuit open for " + serverUrl);
+    try {
+      call();
+    } finally {
+      assertEquals(CircuitBreaker.MINIMUM_REQUESTS, requests.get());
+    }
+  }
+
+  @Test
+  public void shouldCountSlowRequestsAsFailed() {
+    CircuitBreaker circuit = CircuitBreaker.fromConfig(serverUrl, config());
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_SLOW_REQUEST_KEY, 1000L);
+    CircuitBreaker slowCircuit = CircuitBreaker.fromConfig(serverUrl, config());
+
+    assertFalse(circuit.isSlow(5000));
+    assertFalse(slowCircuit.isSlow(999));
+    assertTrue(slowCircuit.isSlow(1000));
+  }
+
+  @Test
+  public void shouldCloseAfterSuccessfulProbe() {
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY, 0L);
+    openCircuit();
+    responseCode = 200;
+
+    CircuitBreaker circuit = CircuitBreaker.fromConfig(serverUrl, config());
+    assertTrue(circuit.acquire());
+    circuit.record(true, false);
+
+    assertFalse(circuit.acquire());
+    assertEquals(200, call());
+  }
+
+  @Test
+  public void shouldLetASingleProbeThrough() throws InterruptedException {
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY, 200L);
+    openCircuit();
+    Thread.sleep(250);
+    assertTrue(CircuitBreaker.fromConfig(serverUrl, config()).acquire());
+
+    thrown.expect(CircuitOpenException.class);
+    thrown.expectMessage("another build is probing the server");
+    CircuitBreaker.fromConfig(serverUrl, config()).acquire();
+  }
+
+  @Test
+  public void shouldReopenAfterFailedProbe() {
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY, 0L);
+    openCircuit();
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY, 60000L);
+
+    // The open duration has elapsed for the probe, which fails
+    assertEquals(503, probe());
+
+    thrown.expect(CircuitOpenException.class);
+    thrown.expectMessage("Circuit open");
+    call();
+  }
+
+  private int probe() {
+    MapSettings probeSettings = new MapSettings();
+    probeSettings.addProperties(settings.getProperties());
+    probeSettings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_DURATION_KEY, 0L);
+    return new PooledHttpConnector(serverUrl, new ConfigurationBridge(probeSettings))
+        .call(new GetRequest("api/ce/task").setParam("id", "task"))
+        .code();
+  }
+
+  @Test
+  public void shouldLetBuildPassWhenConfigured() {
+    settings.setProperty(BuildBreakerPlugin.CIRCUIT_OPEN_OUTCOME_KEY, Deadline.OUTCOME_PASS);
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, 1);
+    openCircuit();
+
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("serverUrl", serverUrl);
+    reportTaskProps.setProperty("ceTaskId", "task");
+    assertEquals(
+        GateCheckMetrics.CIRCUIT_OPEN,
+        new QualityGateBreaker(null, config()).checkReportTaskOutcome(reportTaskProps));
+    assertEquals(CircuitBreaker.MINIMUM_REQUESTS, requests.get());
+  }
+}
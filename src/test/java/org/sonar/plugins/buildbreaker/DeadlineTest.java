@@ -0,0 +1,78 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public final class DeadlineTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNoDeadline() throws InterruptedException {
+    Deadline deadline = Deadline.fromConfig(new ConfigurationBridge(new MapSettings()));
+
+    assertEquals(Long.MAX_VALUE, deadline.remaining());
+    assertEquals(1000, deadline.cap(1000));
+    assertFalse(deadline.isExpired());
+    deadline.check();
+  }
+
+  @Test
+  public void testDeadline() {
+    MapSettings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.TIMEOUT_KEY, 60000);
+    Deadline deadline = Deadline.fromConfig(new ConfigurationBridge(settings));
+
+    assertTrue(deadline.remaining() <= 60000);
+    assertEquals(1000, deadline.cap(1000));
+    assertTrue(deadline.cap(Long.MAX_VALUE) <= 60000);
+  }
+
+  @Test
+  public void testExpiredDeadline() {
+    Deadline deadline = Deadline.after(0);
+
+    assertTrue(deadline.isExpired());
+    assertEquals(0, deadline.cap(1000));
+
+    thrown.expect(DeadlineExceededException.class);
+    thrown.expectMessage("did not complete within 0 ms");
+
+    deadline.check();
+  }
+
+  @Test
+  public void testSleepIsCutShortByDeadline() throws InterruptedException {
+    Deadline deadline = Deadline.after(50);
+
+    thrown.expect(DeadlineExceededException.class);
+
+    deadline.sleep(60000);
+  }
+}
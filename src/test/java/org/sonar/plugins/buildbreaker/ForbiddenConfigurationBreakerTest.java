@@ -20,10 +20,13 @@
 package org.sonar.plugins.buildbreaker;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.sonar.api.batch.postjob.PostJobContext;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.config.Settings;
 import org.sonar.api.config.internal.ConfigurationBridge;
@@ -95,4 +98,95 @@ public final class ForbiddenConfigurationBreakerTest {
 
     new ForbiddenConfigurationBreaker(config).execute(null);
   }
+
+  @Test
+  public void shouldReportAllForbiddenProperties() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage(
+        "2 forbidden configurations have been found on the project: foo=bar, hello=world");
+
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "foo=bar,other=value,hello=world");
+    settings.setProperty("hello", "world");
+    settings.setProperty("foo", "bar");
+    Configuration config = new ConfigurationBridge(settings);
+
+    new ForbiddenConfigurationBreaker(config).execute(null);
+  }
+
+  @Test
+  public void shouldFailIfForbiddenPropertyValueMatchesRegex() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("sonar.exclusions=regex:.*src/main/.*");
+
+    Settings settings = new MapSettings();
+    settings.setProperty(
+        BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "sonar.exclusions=regex:.*src/main/.*");
+    settings.setProperty("sonar.exclusions", "**/generated/**,src/main/java/**");
+    Configuration config = new ConfigurationBridge(settings);
+
+    new ForbiddenConfigurationBreaker(config).execute(null);
+  }
+
+  @Test
+  public void shouldFailIfPropertyMatchingGlobKeyIsForbidden() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage(
+        "A forbidden configuration has been found on the project: "
+            + "glob:sonar.*.exclusions=regex:.+ (sonar.coverage.exclusions)");
+
+    Settings settings = new MapSettings();
+    settings.setProperty(
+        BuildBreakerPlugin.FORBIDDEN_CONF_KEY,
+        "glob:sonar.*.exclusions=regex:.+,glob:sonar.skip?=true");
+    settings.setProperty("sonar.coverage.exclusions", "**/*");
+    settings.setProperty("sonar.cpd.exclusions", "");
+    settings.setProperty("sonar.skipped", "true");
+    PostJobContext context = mock(PostJobContext.class);
+    when(context.settings()).thenReturn(settings);
+
+    new ForbiddenConfigurationBreaker(new ConfigurationBridge(settings)).execute(context);
+  }
+
+  @Test
+  public void shouldNotFailIfNoPropertyMatchesGlobKey() {
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "glob:sonar.*.exclusions=regex:.+");
+    settings.setProperty("sonar.exclusions", "**/*");
+    PostJobContext context = mock(PostJobContext.class);
+    when(context.settings()).thenReturn(settings);
+
+    new ForbiddenConfigurationBreaker(new ConfigurationBridge(settings)).execute(context);
+    // no exception expected
+  }
+
+  @Test
+  public void shouldCompareUnprefixedRulesAsTheyAre() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage(
+        "A forbidden configuration has been found on the project: sonar.*.exclusions=~.+");
+
+    Settings settings = new MapSettings();
+    settings.setProperty(
+        BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "sonar.*.exclusions=~.+,sonar.skip?=true");
+    settings.setProperty("sonar.coverage.exclusions", "**/*");
+    settings.setProperty("sonar.skipped", "true");
+    settings.setProperty("sonar.*.exclusions", "~.+");
+    PostJobContext context = mock(PostJobContext.class);
+    when(context.settings()).thenReturn(settings);
+
+    new ForbiddenConfigurationBreaker(new ConfigurationBridge(settings)).execute(context);
+  }
+
+  @Test
+  public void shouldFailOnInvalidRegex() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Invalid forbidden configuration foo=regex:[bar");
+
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "foo=regex:[bar");
+    Configuration config = new ConfigurationBridge(settings);
+
+    new ForbiddenConfigurationBreaker(config).execute(null);
+  }
 }
@@ -0,0 +1,164 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public final class ForbiddenConfigurationPolicyTest {
+
+  private static final String POLICY =
+      "# Org-wide policy\nsonar.gallio.mode=skip\n\nfoo=regex:b.*\n";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private HttpServer server;
+  private MapSettings settings;
+  private volatile int responseCode = 200;
+  private volatile String lastIfNoneMatch;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/policy.txt",
+        exchange -> {
+          requests.incrementAndGet();
+          lastIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+          if (responseCode != 200) {
+            exchange.sendResponseHeaders(responseCode, -1);
+            exchange.close();
+            return;
+          }
+          byte[] content = POLICY.getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("ETag", "\"v1\"");
+          exchange.sendResponseHeaders(200, content.length);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content);
+          }
+        });
+    server.start();
+
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "bar=true");
+    settings.setProperty(
+        BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_KEY,
+        "http://localhost:" + server.getAddress().getPort() + "/policy.txt");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private String[] rules() {
+    return ForbiddenConfigurationPolicy.rules(new ConfigurationBridge(settings));
+  }
+
+  @Test
+  public void shouldReadPolicyFile() throws IOException {
+    File policy = temp.newFile("policy.txt");
+    Files.write(policy.toPath(), POLICY.getBytes(StandardCharsets.UTF_8));
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_KEY, policy.getAbsolutePath());
+
+    assertArrayEquals(
+        new String[] {"bar=true", "sonar.gallio.mode=skip", "foo=regex:b.*"}, rules());
+    assertEquals(0, requests.get());
+  }
+
+  @Test
+  public void shouldUseCachedPolicyWithinTtl() {
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_TTL_KEY, 60000L);
+
+    rules();
+    responseCode = 500;
+
+    assertArrayEquals(
+        new String[] {"bar=true", "sonar.gallio.mode=skip", "foo=regex:b.*"}, rules());
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void shouldRevalidateExpiredPolicy() {
+    rules();
+    responseCode = 304;
+
+    assertEquals(3, rules().length);
+    assertEquals(2, requests.get());
+    assertEquals("\"v1\"", lastIfNoneMatch);
+  }
+
+  @Test
+  public void shouldUseStalePolicyIfServerFails() {
+    rules();
+    responseCode = 503;
+
+    assertEquals(3, rules().length);
+  }
+
+  @Test
+  public void shouldFailIfPolicyCannotBeDownloaded() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Unable to download the forbidden configuration policy");
+
+    responseCode = 404;
+    rules();
+  }
+
+  @Test
+  public void shouldFailOnUnexpectedDigest() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("does not have the expected SHA-256 digest 0123");
+
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_SHA256_KEY, "0123");
+    rules();
+  }
+
+  @Test
+  public void shouldAcceptExpectedDigest() {
+    settings.setProperty(
+        BuildBreakerPlugin.FORBIDDEN_CONF_POLICY_SHA256_KEY,
+        ForbiddenConfigurationPolicy.sha256(POLICY).toUpperCase());
+
+    assertEquals(3, rules().length);
+  }
+}
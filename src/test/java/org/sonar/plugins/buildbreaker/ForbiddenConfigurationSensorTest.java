@@ -0,0 +1,95 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.sensor.internal.DefaultSensorDescriptor;
+import org.sonar.api.batch.sensor.internal.SensorContextTester;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public final class ForbiddenConfigurationSensorTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private MapSettings settings;
+
+  @Before
+  public void setup() {
+    settings = new MapSettings();
+  }
+
+  private void execute() throws IOException {
+    new ForbiddenConfigurationSensor()
+        .execute(SensorContextTester.create(temp.newFolder()).setSettings(settings));
+  }
+
+  @Test
+  public void shouldOnlyRunWhenConfigured() {
+    DefaultSensorDescriptor descriptor = new DefaultSensorDescriptor();
+    new ForbiddenConfigurationSensor().describe(descriptor);
+
+    assertFalse(descriptor.configurationPredicate().test(new ConfigurationBridge(settings)));
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "foo=bar");
+    assertTrue(descriptor.configurationPredicate().test(new ConfigurationBridge(settings)));
+  }
+
+  @Test
+  public void shouldNotFailWithoutAnyForbiddenConfSet() throws IOException {
+    settings.setProperty("foo", "bar");
+
+    execute();
+    // no exception expected
+  }
+
+  @Test
+  public void shouldFailIfModulePropertyIsForbidden() throws IOException {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage(
+        "2 forbidden configurations have been found on the project: "
+            + "glob:sonar.*.exclusions=regex:.+ (sonar.cpd.exclusions), foo=bar");
+
+    settings.setProperty(
+        BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "glob:sonar.*.exclusions=regex:.+,foo=bar");
+    settings.setProperty("foo", "bar");
+    settings.setProperty("sonar.cpd.exclusions", "**/*");
+
+    execute();
+  }
+
+  @Test
+  public void shouldNotFailIfModuleOverridesForbiddenValue() throws IOException {
+    settings.setProperty(BuildBreakerPlugin.FORBIDDEN_CONF_KEY, "foo=true");
+    settings.setProperty("foo", "false");
+
+    execute();
+    // no exception expected
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonarqube.ws.Ce.Task;
+
+public final class GateCheckMetricsTest {
+
+  private GateCheckMetrics metrics;
+
+  @Before
+  public void setup() {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("projectKey", "group:artifact");
+    reportTaskProps.setProperty("ceTaskId", "AVdp");
+    metrics = new GateCheckMetrics(reportTaskProps);
+  }
+
+  private void recordCheck() {
+    metrics.recordRequest("api/ce/task", 30);
+    metrics.recordRequest("api/ce/task", 50);
+    metrics.recordRequest("api/qualitygates/project_status", 10);
+    metrics.recordTask(
+        Task.newBuilder()
+            .setSubmittedAt("2018-08-10T17:37:00+0200")
+            .setStartedAt("2018-08-10T17:37:02+0200")
+            .setExecutionTimeMs(1500)
+            .build());
+    metrics.recordWait(4000);
+    metrics.recordQualityGate(10);
+    metrics.finish(GateCheckMetrics.PASSED, null);
+  }
+
+  @Test
+  public void testSummary() {
+    recordCheck();
+
+    String summary = metrics.summary();
+    assertTrue(summary, summary.startsWith("group:artifact: PASSED in "));
+    assertTrue(
+        summary,
+        summary.endsWith(
+            "(CE queue 2.0 s, CE execution 1.5 s, waited 4.0 s via polling, 2 polls, "
+                + "3 requests averaging 30 ms, quality gate 10 ms)"));
+  }
+
+  @Test
+  public void testTaskIdWithoutProjectKey() {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("ceTaskId", "AVdp");
+    metrics = new GateCheckMetrics(reportTaskProps);
+    recordCheck();
+
+    assertTrue(metrics.summary(), metrics.summary().startsWith("AVdp: PASSED in "));
+    String text = GateCheckMetrics.toPrometheus(singletonList(metrics));
+    assertTrue(text, text.contains("buildbreaker_polls{project=\"AVdp\"} 2\n"));
+  }
+
+  @Test
+  public void testJson() {
+    recordCheck();
+
+    JsonObject json = new JsonParser().parse(metrics.toJson()).getAsJsonObject();
+    assertEquals("group:artifact", json.get("projectKey").getAsString());
+    assertEquals("AVdp", json.get("ceTaskId").getAsString());
+    assertEquals("PASSED", json.get("outcome").getAsString());
+    assertEquals(2000, json.get("ceQueueTimeMs").getAsLong());
+    assertEquals(1500, json.get("ceExecutionTimeMs").getAsLong());
+    assertEquals(2, json.get("polls").getAsInt());
+    assertEquals(3, json.get("requests").getAsInt());
+    assertEquals(90, json.get("requestTimeMs").getAsLong());
+    assertEquals(50, json.get("maxRequestTimeMs").getAsLong());
+  }
+
+  @Test
+  public void testJsonWithoutTaskTimings() {
+    metrics.recordSource(GateCheckMetrics.SOURCE_WEBHOOK);
+    metrics.finish(GateCheckMetrics.FAILED, "Project does not pass the quality gate.");
+
+    JsonObject json = new JsonParser().parse(metrics.toJson()).getAsJsonObject();
+    assertEquals("webhook", json.get("source").getAsString());
+    assertTrue(json.get("ceQueueTimeMs").isJsonNull());
+  }
+
+  @Test
+  public void testPrometheus() {
+    recordCheck();
+
+    String text = GateCheckMetrics.toPrometheus(singletonList(metrics));
+    assertTrue(text, text.contains("# TYPE buildbreaker_polls gauge\n"));
+    assertTrue(text, text.contains("buildbreaker_polls{project=\"group:artifact\"} 2\n"));
+    assertTrue(text, text.contains("buildbreaker_check_passed{project=\"group:artifact\"} 1\n"));
+    assertTrue(
+        text, text.contains("buildbreaker_ce_queue_seconds{project=\"group:artifact\"} 2.0\n"));
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+public final class GateResultCacheTest {
+
+  private static final String SERVER_URL = "http://localhost:9000";
+
+  private static final ProjectStatus PASSED =
+      ProjectStatus.newBuilder()
+          .setStatus(Status.WARN)
+          .addConditions(
+              Condition.newBuilder()
+                  .setStatus(Status.WARN)
+                  .setMetricKey("coverage")
+                  .setActualValue("70"))
+          .build();
+
+  private static final ProjectStatus FAILED =
+      ProjectStatus.newBuilder().setStatus(Status.ERROR).build();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private MapSettings settings;
+  private File cacheDir;
+
+  @Before
+  public void setup() throws IOException {
+    cacheDir = temp.newFolder();
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, cacheDir.getAbsolutePath());
+    settings.setProperty(BuildBreakerPlugin.RESULT_CACHE_TTL_KEY, 60000L);
+    settings.setProperty(BuildBreakerPlugin.RESULT_CACHE_SIZE_KEY, 10);
+    settings.setProperty(BuildBreakerPlugin.REVISION_KEY, "abc123");
+  }
+
+  private GateResultCache cache() {
+    return GateResultCache.fromConfig(new ConfigurationBridge(settings));
+  }
+
+  private static Properties reportTask(String ceTaskId) {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("projectKey", "project");
+    reportTaskProps.setProperty("ceTaskId", ceTaskId);
+    return reportTaskProps;
+  }
+
+  @Test
+  public void shouldReuseVerdictOfSameTask() {
+    cache().store(SERVER_URL, reportTask("task1"), FAILED);
+
+    assertEquals(FAILED, cache().lookup(SERVER_URL, reportTask("task1")).get());
+  }
+
+  @Test
+  public void shouldReusePassedVerdictOfSameRevision() {
+    cache().store(SERVER_URL, reportTask("task1"), PASSED);
+
+    assertEquals(PASSED, cache().lookup(SERVER_URL, reportTask("task2")).get());
+
+    settings.setProperty(GateResultCache.BRANCH_NAME_KEY, "feature");
+    assertFalse(cache().lookup(SERVER_URL, reportTask("task2")).isPresent());
+    settings.setProperty(BuildBreakerPlugin.REVISION_KEY, "def456");
+    assertFalse(cache().lookup(SERVER_URL, reportTask("task2")).isPresent());
+  }
+
+  @Test
+  public void shouldNotReuseFailedVerdictOfSameRevision() {
+    cache().store(SERVER_URL, reportTask("task1"), FAILED);
+
+    assertFalse(cache().lookup(SERVER_URL, reportTask("task2")).isPresent());
+  }
+
+  @Test
+  public void shouldNotReadWhenBypassed() {
+    settings.setProperty(BuildBreakerPlugin.RESULT_CACHE_BYPASS_KEY, true);
+    cache().store(SERVER_URL, reportTask("task1"), PASSED);
+
+    assertFalse(cache().lookup(SERVER_URL, reportTask("task1")).isPresent());
+  }
+
+  @Test
+  public void shouldEvictOldestVerdicts() {
+    settings.setProperty(BuildBreakerPlugin.RESULT_CACHE_SIZE_KEY, 2);
+    settings.removeProperty(BuildBreakerPlugin.REVISION_KEY);
+    cache().store(SERVER_URL, reportTask("task1"), PASSED);
+    age();
+    cache().store(SERVER_URL, reportTask("task2"), PASSED);
+    age();
+    cache().store(SERVER_URL, reportTask("task3"), PASSED);
+
+    assertFalse(cache().lookup(SERVER_URL, reportTask("task1")).isPresent());
+    assertEquals(PASSED, cache().lookup(SERVER_URL, reportTask("task3")).get());
+    assertEquals(2, new File(cacheDir, "gate-results").listFiles().length);
+  }
+
+  private void age() {
+    for (File file : new File(cacheDir, "gate-results").listFiles()) {
+      file.setLastModified(file.lastModified() - 1000);
+    }
+  }
+}
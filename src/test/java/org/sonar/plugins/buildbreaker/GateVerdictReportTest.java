@@ -0,0 +1,124 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Comparator;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+public final class GateVerdictReportTest {
+
+  private static GateCheckMetrics check(String projectKey, Status status) {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("projectKey", projectKey);
+    reportTaskProps.setProperty("ceTaskId", "task-" + projectKey);
+    reportTaskProps.setProperty("dashboardUrl", "http://localhost:9000/dashboard?id=" + projectKey);
+    GateCheckMetrics metrics = new GateCheckMetrics(reportTaskProps);
+    metrics.recordTask(Task.newBuilder().setAnalysisId("analysis-" + projectKey).build());
+    metrics.recordProjectStatus(
+        ProjectStatus.newBuilder()
+            .setStatus(status)
+            .addConditions(
+                Condition.newBuilder()
+                    .setStatus(status)
+                    .setMetricKey("coverage")
+                    .setComparator(Comparator.LT)
+                    .setActualValue("75.0")
+                    .setErrorThreshold("80"))
+            .build(),
+        MetricNames.CORE);
+    if (Status.OK.equals(status)) {
+      metrics.finish(GateCheckMetrics.PASSED, null);
+    } else {
+      metrics.finish(GateCheckMetrics.FAILED, "Project does not pass the quality gate.");
+    }
+    return metrics;
+  }
+
+  @Test
+  public void testJson() {
+    List<GateCheckMetrics> checks =
+        Arrays.asList(check("passing", Status.OK), check("failing", Status.ERROR));
+
+    JsonObject json = new JsonParser().parse(GateVerdictReport.toJson(checks)).getAsJsonObject();
+
+    assertEquals("FAILED", json.get("outcome").getAsString());
+    JsonObject failing = json.getAsJsonArray("projects").get(1).getAsJsonObject();
+    assertEquals("failing", failing.get("projectKey").getAsString());
+    assertEquals("analysis-failing", failing.get("analysisId").getAsString());
+    assertEquals("ERROR", failing.get("status").getAsString());
+    JsonObject condition = failing.getAsJsonArray("conditions").get(0).getAsJsonObject();
+    assertEquals("coverage", condition.get("metricKey").getAsString());
+    assertEquals("Coverage", condition.get("metricName").getAsString());
+    assertEquals("LT", condition.get("comparator").getAsString());
+    assertEquals("75.0", condition.get("actualValue").getAsString());
+    assertEquals("80", condition.get("errorThreshold").getAsString());
+    assertTrue(condition.get("warningThreshold").isJsonNull());
+    assertTrue(failing.getAsJsonObject("timings").has("totalTimeMs"));
+  }
+
+  @Test
+  public void testJUnit() {
+    List<GateCheckMetrics> checks =
+        Arrays.asList(check("passing", Status.OK), check("fail<ing>", Status.ERROR));
+
+    String xml = GateVerdictReport.toJUnit(checks);
+
+    assertTrue(xml, xml.contains("tests=\"2\" failures=\"1\" errors=\"0\""));
+    assertTrue(xml, xml.matches("(?s).*name=\"passing\" time=\"[0-9.]+\"></testcase>.*"));
+    assertTrue(xml, xml.contains("name=\"fail&lt;ing&gt;\""));
+    assertTrue(xml, xml.contains("ERROR Coverage: 75.0 &lt; 80\n</failure>"));
+  }
+
+  @Test
+  public void testErrorIsNotAFailedGate() {
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("projectKey", "broken");
+    GateCheckMetrics broken = new GateCheckMetrics(reportTaskProps);
+    broken.finish(
+        GateCheckMetrics.ERROR, "Report processing did not complete successfully: FAILED");
+    List<GateCheckMetrics> checks = Arrays.asList(check("passing", Status.OK), broken);
+
+    String xml = GateVerdictReport.toJUnit(checks);
+    JsonObject json = new JsonParser().parse(GateVerdictReport.toJson(checks)).getAsJsonObject();
+
+    assertTrue(xml, xml.contains("tests=\"2\" failures=\"0\" errors=\"1\""));
+    assertTrue(
+        xml,
+        xml.contains(
+            "<error message=\"Report processing did not complete successfully: FAILED\" "
+                + "type=\"ERROR\">"));
+    assertEquals("ERROR", json.get("outcome").getAsString());
+    assertEquals(
+        "Report processing did not complete successfully: FAILED",
+        json.getAsJsonArray("projects").get(1).getAsJsonObject().get("message").getAsString());
+  }
+}
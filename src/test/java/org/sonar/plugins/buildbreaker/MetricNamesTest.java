@@ -0,0 +1,154 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.client.WsClient;
+import org.sonarqube.ws.client.WsClientFactories;
+
+public final class MetricNamesTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private HttpServer server;
+  private MapSettings settings;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/api/metrics/search",
+        exchange -> {
+          requests.incrementAndGet();
+          byte[] content =
+              ("{\"metrics\":[{\"key\":\"coverage\",\"name\":\"Coverage\"},"
+                      + "{\"key\":\"team_score\",\"name\":\"Team Score\"}],"
+                      + "\"total\":2,\"p\":1,\"ps\":500}")
+                  .getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, content.length);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content);
+          }
+        });
+    server.start();
+
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.METRIC_NAMES_TTL_KEY, 60000);
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, temp.newFolder().getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private WsClient wsClient() {
+    return WsClientFactories.getDefault()
+        .newClient(
+            new PooledHttpConnector(
+                "http://localhost:" + server.getAddress().getPort(),
+                new ConfigurationBridge(settings)));
+  }
+
+  @Test
+  public void testCoreMetrics() {
+    assertEquals("Coverage", MetricNames.CORE.get("coverage"));
+    assertEquals("team_score", MetricNames.CORE.get("team_score"));
+  }
+
+  @Test
+  public void testDisabled() {
+    settings.setProperty(BuildBreakerPlugin.METRIC_NAMES_TTL_KEY, 0);
+
+    MetricNames metricNames = MetricNames.fetch(wsClient(), new ConfigurationBridge(settings));
+
+    assertEquals("team_score", metricNames.get("team_score"));
+    assertEquals(0, requests.get());
+  }
+
+  @Test
+  public void testCustomMetricsAreFetchedAndCached() {
+    MetricNames metricNames = MetricNames.fetch(wsClient(), new ConfigurationBridge(settings));
+    assertEquals("Team Score", metricNames.get("team_score"));
+    assertEquals("Coverage", metricNames.get("coverage"));
+    assertEquals("unknown", metricNames.get("unknown"));
+
+    metricNames = MetricNames.fetch(wsClient(), new ConfigurationBridge(settings));
+    assertEquals("Team Score", metricNames.get("team_score"));
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testExpiredCacheIsUsedIfServerFails() throws InterruptedException {
+    MetricNames.fetch(wsClient(), new ConfigurationBridge(settings));
+    Thread.sleep(10);
+    settings.setProperty(BuildBreakerPlugin.METRIC_NAMES_TTL_KEY, 1);
+    WsClient wsClient = wsClient();
+    server.removeContext("/api/metrics/search");
+
+    MetricNames metricNames = MetricNames.fetch(wsClient, new ConfigurationBridge(settings));
+
+    assertEquals("Team Score", metricNames.get("team_score"));
+  }
+
+  @Test
+  public void testUnresolvedIfServerFails() {
+    server.removeContext("/api/metrics/search");
+
+    MetricNames metricNames = MetricNames.fetch(wsClient(), new ConfigurationBridge(settings));
+
+    assertEquals("team_score", metricNames.get("team_score"));
+  }
+
+  @Test
+  public void testUnresolvedIfDeadlineExceeded() {
+    WsClient wsClient =
+        WsClientFactories.getDefault()
+            .newClient(
+                new PooledHttpConnector(
+                    "http://localhost:" + server.getAddress().getPort(),
+                    new ConfigurationBridge(settings),
+                    Deadline.after(0),
+                    new GateCheckMetrics(new Properties())));
+
+    MetricNames metricNames = MetricNames.fetch(wsClient, new ConfigurationBridge(settings));
+
+    assertEquals("team_score", metricNames.get("team_score"));
+    assertEquals(0, requests.get());
+  }
+}
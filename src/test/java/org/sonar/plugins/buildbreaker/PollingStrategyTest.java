@@ -0,0 +1,113 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public final class PollingStrategyTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testFixed() {
+    PollingStrategy strategy = PollingStrategy.fixed(500);
+
+    assertEquals(500, strategy.nextDelay(0));
+    assertEquals(500, strategy.nextDelay(10));
+  }
+
+  @Test
+  public void testExponentialStaysWithinJitterBoundsAndCap() {
+    PollingStrategy strategy = PollingStrategy.exponential(100, 1000);
+
+    for (int i = 0; i < 20; i++) {
+      assertBetween(50, 100, strategy.nextDelay(0));
+      assertBetween(100, 200, strategy.nextDelay(1));
+      assertBetween(400, 800, strategy.nextDelay(3));
+      assertBetween(500, 1000, strategy.nextDelay(4));
+      assertBetween(500, 1000, strategy.nextDelay(Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testFastStart() {
+    PollingStrategy strategy = PollingStrategy.fastStart(100, 3, 1000);
+
+    assertEquals(100, strategy.nextDelay(0));
+    assertEquals(100, strategy.nextDelay(2));
+    assertBetween(100, 200, strategy.nextDelay(3));
+    assertBetween(200, 400, strategy.nextDelay(4));
+    assertBetween(500, 1000, strategy.nextDelay(30));
+  }
+
+  @Test
+  public void testBackoffDoesNotOverflow() {
+    assertEquals(Long.MAX_VALUE, PollingStrategy.backoff(3, Long.MAX_VALUE, 200));
+  }
+
+  @Test
+  public void testFromConfigDefaultsToFixed() {
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.QUERY_INTERVAL_KEY, 42);
+
+    PollingStrategy strategy = PollingStrategy.fromConfig(new ConfigurationBridge(settings));
+
+    assertEquals(42, strategy.nextDelay(5));
+  }
+
+  @Test
+  public void testFromConfigFastStart() {
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.POLLING_STRATEGY_KEY, "fastStart");
+    settings.setProperty(BuildBreakerPlugin.QUERY_INTERVAL_KEY, 10000);
+    settings.setProperty(BuildBreakerPlugin.QUERY_INITIAL_INTERVAL_KEY, 1000);
+    settings.setProperty(BuildBreakerPlugin.FAST_START_ATTEMPTS_KEY, 2);
+
+    PollingStrategy strategy = PollingStrategy.fromConfig(new ConfigurationBridge(settings));
+
+    assertEquals(1000, strategy.nextDelay(1));
+    assertBetween(1000, 2000, strategy.nextDelay(2));
+  }
+
+  @Test
+  public void testFromConfigUnknownStrategy() {
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.POLLING_STRATEGY_KEY, "sometimes");
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Unknown polling strategy");
+
+    PollingStrategy.fromConfig(new ConfigurationBridge(settings));
+  }
+
+  private static void assertBetween(long min, long max, long actual) {
+    assertTrue(
+        String.format("Expected %d to be between %d and %d", actual, min, max),
+        min <= actual && actual <= max);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.client.GetRequest;
+import org.sonarqube.ws.client.WsResponse;
+
+public final class PooledHttpConnectorTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private HttpServer server;
+  private MapSettings settings;
+  private volatile String lastQuery;
+  private volatile String lastAuthorization;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/ce/task", this::respondGzipped);
+    server.createContext(
+        "/api/slow",
+        exchange -> {
+          try {
+            Thread.sleep(5000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          exchange.sendResponseHeaders(204, -1);
+          exchange.close();
+        });
+    server.start();
+
+    settings = new MapSettings();
+    settings.setProperty(CoreProperties.LOGIN, "token");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void respondGzipped(HttpExchange exchange) throws IOException {
+    lastQuery = exchange.getRequestURI().getQuery();
+    lastAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+
+    byte[] content = "{\"task\":{}}".getBytes(StandardCharsets.UTF_8);
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+        gzip.write(content);
+      }
+      content = compressed.toByteArray();
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  private String serverUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  @Test
+  public void testConnectionIsReused() {
+    PooledHttpConnector connector =
+        new PooledHttpConnector(serverUrl(), new ConfigurationBridge(settings));
+    long requests = PooledHttpConnector.requestCount();
+    long connections = PooledHttpConnector.connectionCount();
+
+    connector.call(new GetRequest("api/ce/task").setParam("id", "1"));
+    // A later build in the same JVM creates its own connector
+    new PooledHttpConnector(serverUrl(), new ConfigurationBridge(settings))
+        .call(new GetRequest("api/ce/task").setParam("id", "2"));
+
+    assertEquals(2, PooledHttpConnector.requestCount() - requests);
+    assertEquals(1, PooledHttpConnector.connectionCount() - connections);
+  }
+
+  @Test
+  public void testRequestAndCompressedResponse() {
+    WsResponse response =
+        new PooledHttpConnector(serverUrl() + "/", new ConfigurationBridge(settings))
+            .call(new GetRequest("api/ce/task").setParam("id", "AVdp"));
+
+    assertEquals(200, response.code());
+    assertEquals("{\"task\":{}}", response.content());
+    assertEquals("id=AVdp", lastQuery);
+    assertEquals("Basic dG9rZW46", lastAuthorization);
+  }
+
+  @Test
+  public void testCallTimeout() {
+    settings.setProperty(BuildBreakerPlugin.CALL_TIMEOUT_KEY, 200);
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("timed out after 200 ms");
+
+    new PooledHttpConnector(serverUrl(), new ConfigurationBridge(settings))
+        .call(new GetRequest("api/slow"));
+  }
+
+  @Test
+  public void testMalformedUrl() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Malformed URL");
+
+    new PooledHttpConnector("localhost:9000", new ConfigurationBridge(settings));
+  }
+
+  @Test
+  public void testNoCredentials() {
+    new PooledHttpConnector(serverUrl(), new ConfigurationBridge(new MapSettings()))
+        .call(new GetRequest("api/ce/task"));
+
+    assertNull(lastAuthorization);
+  }
+}
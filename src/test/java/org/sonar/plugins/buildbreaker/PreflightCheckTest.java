@@ -0,0 +1,153 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public final class PreflightCheckTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private HttpServer server;
+  private MapSettings settings;
+  private volatile String validation = "{\"valid\":true}";
+  private volatile int projectStatusCode = 200;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/api/authentication/validate",
+        exchange -> {
+          requests.incrementAndGet();
+          byte[] content = validation.getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, content.length);
+          try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content);
+          }
+        });
+    server.createContext(
+        "/api/qualitygates/project_status",
+        exchange -> {
+          requests.incrementAndGet();
+          exchange.sendResponseHeaders(projectStatusCode, -1);
+          exchange.close();
+        });
+    server.start();
+
+    settings = new MapSettings();
+    settings.setProperty(
+        PreflightCheck.SERVER_URL_KEY, "http://localhost:" + server.getAddress().getPort());
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, temp.newFolder().getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void check() {
+    PreflightCheck.run(new ConfigurationBridge(settings), "group:artifact");
+  }
+
+  @Test
+  public void testPassedCheckIsCached() {
+    settings.setProperty(BuildBreakerPlugin.PREFLIGHT_TTL_KEY, 60000);
+
+    check();
+    check();
+
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testNotCachedWithoutTtl() {
+    check();
+    check();
+
+    assertEquals(4, requests.get());
+  }
+
+  @Test
+  public void testFirstAnalysis() {
+    projectStatusCode = 404;
+
+    check();
+  }
+
+  @Test
+  public void testInvalidCredentials() {
+    validation = "{\"valid\":false}";
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Pre-flight check failed: invalid credentials");
+
+    check();
+  }
+
+  @Test
+  public void testMissingPermission() {
+    projectStatusCode = 403;
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("missing 'Browse' permission on project group:artifact");
+
+    check();
+  }
+
+  @Test
+  public void testUnreachableServer() {
+    settings.setProperty(BuildBreakerPlugin.ALTERNATIVE_SERVER_URL_KEY, "http://localhost:1");
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Pre-flight check failed: unable to reach http://localhost:1/");
+
+    check();
+  }
+
+  @Test
+  public void testProjectKeyIncludesLegacyBranch() {
+    settings.setProperty(PreflightCheck.PROJECT_KEY_KEY, "group:artifact");
+    assertEquals("group:artifact", PreflightCheck.getProjectKey(new ConfigurationBridge(settings)));
+
+    settings.setProperty(PreflightCheck.BRANCH_KEY, "feature");
+    assertEquals(
+        "group:artifact:feature", PreflightCheck.getProjectKey(new ConfigurationBridge(settings)));
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarqube.ws.Ce.Task;
+import org.sonarqube.ws.Ce.TaskResponse;
+import org.sonarqube.ws.Ce.TaskStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+public final class QualityGateAwaitTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private HttpServer server;
+  private volatile Status gateStatus = Status.OK;
+  private volatile TaskStatus taskStatus = TaskStatus.SUCCESS;
+  private final AtomicInteger taskRequests = new AtomicInteger();
+  private volatile String lastCeTaskId;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/api/ce/task",
+        exchange -> {
+          lastCeTaskId = exchange.getRequestURI().getQuery();
+          taskRequests.incrementAndGet();
+          respond(
+              exchange,
+              TaskResponse.newBuilder()
+                  .setTask(
+                      Task.newBuilder()
+                          .setId("task")
+                          .setStatus(taskStatus)
+                          .setAnalysisId("analysis"))
+                  .build());
+        });
+    server.createContext(
+        "/api/qualitygates/project_status",
+        exchange ->
+            respond(
+                exchange,
+                ProjectStatusResponse.newBuilder()
+                    .setProjectStatus(ProjectStatus.newBuilder().setStatus(gateStatus))
+                    .build()));
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private static void respond(HttpExchange exchange, Message message) throws IOException {
+    byte[] content = message.toByteArray();
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  private String serverUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  private String cacheDirSetting() throws IOException {
+    return "-D" + BuildBreakerPlugin.CACHE_DIR_KEY + "=" + temp.newFolder().getAbsolutePath();
+  }
+
+  @Test
+  public void testUsage() {
+    assertEquals(
+        QualityGateAwait.EXIT_USAGE, QualityGateAwait.run(new String[0], Collections.emptyMap()));
+    assertEquals(
+        QualityGateAwait.EXIT_USAGE,
+        QualityGateAwait.run(
+            new String[] {QualityGateAwait.CE_TASK_ID_OPTION, "task"}, Collections.emptyMap()));
+    assertEquals(
+        QualityGateAwait.EXIT_USAGE,
+        QualityGateAwait.run(
+            new String[] {"report-task.txt", QualityGateAwait.CE_TASK_ID_OPTION, "task"},
+            Collections.emptyMap()));
+  }
+
+  @Test
+  public void testMissingHandoffRecordsFailure() {
+    File handoffFile = new File(temp.getRoot(), "handoff.properties");
+
+    int exitCode =
+        QualityGateAwait.run(new String[] {handoffFile.getPath()}, Collections.emptyMap());
+
+    assertEquals(QualityGateAwait.EXIT_FAILED, exitCode);
+    Properties verdict =
+        BuildBreakerCache.load(
+            new File(handoffFile.getPath() + QualityGateAwait.VERDICT_FILE_SUFFIX));
+    assertEquals("FAILED", verdict.getProperty("status"));
+  }
+
+  @Test
+  public void testReportTaskFile() throws IOException {
+    File reportTaskFile = temp.newFile(QualityGateBreaker.REPORT_TASK_FILE_NAME);
+    Files.write(
+        reportTaskFile.toPath(),
+        Arrays.asList("projectKey=project", "serverUrl=" + serverUrl(), "ceTaskId=task"),
+        StandardCharsets.UTF_8);
+    gateStatus = Status.ERROR;
+
+    int exitCode =
+        QualityGateAwait.run(
+            new String[] {reportTaskFile.getPath(), cacheDirSetting()}, Collections.emptyMap());
+
+    assertEquals(QualityGateAwait.EXIT_FAILED, exitCode);
+    assertEquals("id=task", lastCeTaskId);
+    Properties verdict =
+        BuildBreakerCache.load(
+            new File(reportTaskFile.getPath() + QualityGateAwait.VERDICT_FILE_SUFFIX));
+    assertEquals("FAILED", verdict.getProperty("status"));
+  }
+
+  @Test
+  public void testInvalidSettingRecordsFailure() throws IOException {
+    File reportTaskFile = temp.newFile(QualityGateBreaker.REPORT_TASK_FILE_NAME);
+    Files.write(
+        reportTaskFile.toPath(),
+        Arrays.asList("projectKey=project", "serverUrl=" + serverUrl(), "ceTaskId=task"),
+        StandardCharsets.UTF_8);
+
+    int exitCode =
+        QualityGateAwait.run(
+            new String[] {
+              reportTaskFile.getPath(),
+              cacheDirSetting(),
+              "-D" + BuildBreakerPlugin.POLLING_STRATEGY_KEY + "=bogus"
+            },
+            Collections.emptyMap());
+
+    assertEquals(QualityGateAwait.EXIT_FAILED, exitCode);
+    Properties verdict =
+        BuildBreakerCache.load(
+            new File(reportTaskFile.getPath() + QualityGateAwait.VERDICT_FILE_SUFFIX));
+    assertEquals("FAILED", verdict.getProperty("status"));
+  }
+
+  @Test
+  public void testCeTaskIdAndServerUrl() throws IOException {
+    int exitCode =
+        QualityGateAwait.run(
+            new String[] {
+              QualityGateAwait.CE_TASK_ID_OPTION,
+              "task",
+              QualityGateAwait.SERVER_URL_OPTION,
+              serverUrl(),
+              cacheDirSetting()
+            },
+            Collections.emptyMap());
+
+    assertEquals(QualityGateAwait.EXIT_PASSED, exitCode);
+    assertEquals("id=task", lastCeTaskId);
+    assertFalse(new File("task" + QualityGateAwait.VERDICT_FILE_SUFFIX).exists());
+  }
+
+  @Test
+  public void testPredictedDelayCountsAgainstQueryBudget() throws IOException {
+    // The history expects processing to take 2 minutes, far beyond 3 * 100 ms
+    File cacheDir = temp.newFolder();
+    Properties history = new Properties();
+    history.setProperty("samples", "60000:60000");
+    BuildBreakerCache.store(
+        new File(
+            cacheDir,
+            "ce-history/"
+                + BuildBreakerCache.toFileName(serverUrl())
+                + "/"
+                + BuildBreakerCache.toFileName("project")),
+        history);
+    File reportTaskFile = temp.newFile(QualityGateBreaker.REPORT_TASK_FILE_NAME);
+    Files.write(
+        reportTaskFile.toPath(),
+        Arrays.asList("projectKey=project", "serverUrl=" + serverUrl(), "ceTaskId=task"),
+        StandardCharsets.UTF_8);
+    taskStatus = TaskStatus.PENDING;
+
+    long start = System.nanoTime();
+    int exitCode =
+        QualityGateAwait.run(
+            new String[] {
+              reportTaskFile.getPath(),
+              "-D" + BuildBreakerPlugin.CACHE_DIR_KEY + "=" + cacheDir.getAbsolutePath(),
+              "-D" + BuildBreakerPlugin.CE_HISTORY_SIZE_KEY + "=10",
+              "-D" + BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY + "=3",
+              "-D" + BuildBreakerPlugin.QUERY_INTERVAL_KEY + "=100"
+            },
+            Collections.emptyMap());
+
+    assertEquals(QualityGateAwait.EXIT_FAILED, exitCode);
+    assertEquals(1, taskRequests.get());
+    assertTrue(System.nanoTime() - start < 10_000_000_000L);
+  }
+}
@@ -21,6 +21,7 @@ package org.sonar.plugins.buildbreaker;
 
 import static org.hamcrest.CoreMatchers.isA;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -29,7 +30,13 @@ import com.google.common.collect.Lists;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Optional;
 import java.util.Properties;
 import org.junit.Before;
 import org.junit.Rule;
@@ -134,6 +141,124 @@ public final class QualityGateBreakerTest {
     new QualityGateBreaker(fileSystem, config).execute(null);
   }
 
+  @Test
+  public void testDetachedWritesHandoffWithoutQuerying() throws IOException {
+    // PowerMockRunner does not support more than one rule, so no TemporaryFolder here
+    File handoffFile =
+        new File(Files.createTempDirectory("buildbreaker").toFile(), "handoff.properties");
+    handoffFile.getParentFile().deleteOnExit();
+    handoffFile.deleteOnExit();
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.DETACHED_KEY, true);
+    settings.setProperty(BuildBreakerPlugin.HANDOFF_FILE_KEY, handoffFile.getPath());
+    Configuration config = new ConfigurationBridge(settings);
+
+    // No exception, although max attempts defaults to 0
+
+    new QualityGateBreaker(fileSystem, config).execute(null);
+    assertEquals(
+        "AVKJ_h9DIK5ABR5tIoQ_", QualityGateHandoff.load(handoffFile).getProperty("ceTaskId"));
+  }
+
+  @Test
+  public void testGetReportTaskFiles() {
+    Settings settings = new MapSettings();
+    settings.setProperty(
+        BuildBreakerPlugin.REPORT_TASK_PATHS_KEY,
+        "src/test/resources/org/sonar/plugins/buildbreaker,"
+            + "src/test/resources/org/sonar/plugins/buildbreaker/alternative-report-task.txt");
+    Configuration config = new ConfigurationBridge(settings);
+
+    List<File> reportTaskFiles = new QualityGateBreaker(fileSystem, config).getReportTaskFiles();
+
+    assertEquals(2, reportTaskFiles.size());
+    assertEquals("report-task.txt", reportTaskFiles.get(0).getName());
+    assertEquals("alternative-report-task.txt", reportTaskFiles.get(1).getName());
+  }
+
+  /**
+   * Because max attempts is unset, every check fails immediately, and the failures are reported
+   * together.
+   */
+  @Test
+  public void testReportTaskFilesFailuresAreAggregated() {
+    Settings settings = new MapSettings();
+    settings.setProperty(
+        BuildBreakerPlugin.REPORT_TASK_PATHS_KEY,
+        "src/test/resources/org/sonar/plugins/buildbreaker/report-task.txt,"
+            + "src/test/resources/org/sonar/plugins/buildbreaker/alternative-report-task.txt");
+    settings.setProperty(BuildBreakerPlugin.PARALLELISM_KEY, 2);
+    Configuration config = new ConfigurationBridge(settings);
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Projects do not pass the quality gate: group:artifact:branch, ");
+
+    new QualityGateBreaker(fileSystem, config).execute(null);
+  }
+
+  /**
+   * Recorded history makes the check wait for longer than its deadline before the first query, so
+   * the deadline expires without any request.
+   */
+  private Settings settingsExceedingDeadline() throws IOException {
+    File cacheDir = Files.createTempDirectory("buildbreaker").toFile();
+    cacheDir.deleteOnExit();
+    Properties history = new Properties();
+    history.setProperty("samples", "2000:3000");
+    BuildBreakerCache.store(
+        new File(
+            cacheDir,
+            "ce-history/"
+                + BuildBreakerCache.toFileName("http://example.com:9000")
+                + "/"
+                + BuildBreakerCache.toFileName("group:artifact:branch")),
+        history);
+
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, cacheDir.getPath());
+    settings.setProperty(BuildBreakerPlugin.CE_HISTORY_SIZE_KEY, 10);
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, 5);
+    settings.setProperty(BuildBreakerPlugin.TIMEOUT_KEY, 50);
+    return settings;
+  }
+
+  @Test
+  public void testTimeoutFails() throws IOException {
+    Configuration config = new ConfigurationBridge(settingsExceedingDeadline());
+
+    thrown.expect(DeadlineExceededException.class);
+    thrown.expectMessage("Quality gate check did not complete within 50 ms");
+
+    new QualityGateBreaker(fileSystem, config).execute(null);
+  }
+
+  @Test
+  public void testTimeoutOutcomePassWritesMarker() throws IOException {
+    File workDir = Files.createTempDirectory("buildbreaker").toFile();
+    workDir.deleteOnExit();
+    File marker = new File(workDir, QualityGateBreaker.TIMEOUT_MARKER_FILE_NAME);
+    marker.deleteOnExit();
+    Files.copy(
+        new File("src/test/resources/org/sonar/plugins/buildbreaker/report-task.txt").toPath(),
+        new File(workDir, QualityGateBreaker.REPORT_TASK_FILE_NAME).toPath());
+    new File(workDir, QualityGateBreaker.REPORT_TASK_FILE_NAME).deleteOnExit();
+    when(fileSystem.workDir()).thenReturn(workDir);
+    Settings settings = settingsExceedingDeadline();
+    settings.setProperty(BuildBreakerPlugin.TIMEOUT_OUTCOME_KEY, Deadline.OUTCOME_PASS);
+    settings.setProperty(BuildBreakerPlugin.METRICS_KEY, true);
+    Configuration config = new ConfigurationBridge(settings);
+    File metrics = new File(workDir, GateCheckMetrics.JSON_FILE_NAME);
+    metrics.deleteOnExit();
+
+    // No exception
+
+    new QualityGateBreaker(fileSystem, config).execute(null);
+    assertEquals("AVKJ_h9DIK5ABR5tIoQ_", BuildBreakerCache.load(marker).getProperty("unchecked"));
+    assertTrue(
+        new String(Files.readAllBytes(metrics.toPath()), StandardCharsets.UTF_8)
+            .contains("\"outcome\": \"TIMED_OUT\""));
+  }
+
   /**
    * Mock everything up until a query would be attempted. Because max attempts is unset, it defaults
    * to 0. Expect immediate failure.
@@ -296,6 +421,59 @@ public final class QualityGateBreakerTest {
     new QualityGateBreaker(fileSystem, config).getAnalysisId(wsClient, TEST_TASK_ID);
   }
 
+  @Test
+  public void testSingleQueryThrottled() {
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, 1);
+    Configuration config = new ConfigurationBridge(settings);
+
+    WsClient wsClient = mock(WsClient.class);
+    WsConnector wsConnector = mock(WsConnector.class);
+    WsResponse wsResponse = mock(WsResponse.class);
+
+    when(wsClient.wsConnector()).thenReturn(wsConnector);
+    when(wsConnector.call(any(WsRequest.class))).thenReturn(wsResponse);
+    when(wsResponse.code()).thenReturn(429);
+    when(wsResponse.header("Retry-After")).thenReturn(Optional.of("0"));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Report processing is taking longer than the configured wait limit.");
+
+    new QualityGateBreaker(fileSystem, config).getAnalysisId(wsClient, TEST_TASK_ID);
+  }
+
+  @Test
+  public void testRetryAfterSeconds() {
+    WsResponse wsResponse = mock(WsResponse.class);
+    when(wsResponse.header("Retry-After")).thenReturn(Optional.of(" 3 "));
+
+    assertEquals(3000, QualityGateBreaker.getRetryAfter(wsResponse));
+  }
+
+  @Test
+  public void testRetryAfterHttpDate() {
+    WsResponse wsResponse = mock(WsResponse.class);
+    when(wsResponse.header("Retry-After"))
+        .thenReturn(
+            Optional.of(
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(1))));
+
+    long retryAfter = QualityGateBreaker.getRetryAfter(wsResponse);
+    assertTrue(retryAfter > 50_000 && retryAfter <= 60_000);
+  }
+
+  @Test
+  public void testRetryAfterMissingOrInvalid() {
+    WsResponse wsResponse = mock(WsResponse.class);
+    when(wsResponse.header("Retry-After"))
+        .thenReturn(Optional.empty())
+        .thenReturn(Optional.of("soon"));
+
+    assertEquals(0, QualityGateBreaker.getRetryAfter(wsResponse));
+    assertEquals(0, QualityGateBreaker.getRetryAfter(wsResponse));
+  }
+
   @Test
   public void testQualityGateStatusWarning() {
     Settings settings = new MapSettings();
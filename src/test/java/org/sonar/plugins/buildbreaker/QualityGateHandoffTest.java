@@ -0,0 +1,98 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.Settings;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public final class QualityGateHandoffTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testWriteAndLoad() throws IOException {
+    Settings settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY, 7);
+    settings.setProperty(BuildBreakerPlugin.DETACHED_KEY, true);
+    settings.setProperty(BuildBreakerPlugin.ALTERNATIVE_SERVER_URL_KEY, "http://alternative");
+    settings.setProperty(CoreProperties.LOGIN, "secret-token");
+    Properties reportTaskProps = new Properties();
+    reportTaskProps.setProperty("ceTaskId", "Abc123");
+    reportTaskProps.setProperty("serverUrl", "http://example.com");
+    File handoffFile = new File(temp.newFolder(), "handoff.properties");
+
+    QualityGateHandoff.write(
+        handoffFile, reportTaskProps, "http://alternative", new ConfigurationBridge(settings));
+    Properties handoff = QualityGateHandoff.load(handoffFile);
+
+    assertEquals("Abc123", handoff.getProperty("ceTaskId"));
+    assertEquals("http://alternative", handoff.getProperty("serverUrl"));
+    assertEquals("7", handoff.getProperty(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY));
+    assertFalse(handoff.containsKey(BuildBreakerPlugin.DETACHED_KEY));
+    assertFalse(handoff.containsKey(BuildBreakerPlugin.ALTERNATIVE_SERVER_URL_KEY));
+    assertFalse(handoff.containsValue("secret-token"));
+  }
+
+  @Test
+  public void testLoadMissingFile() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Unable to load handoff file");
+
+    QualityGateHandoff.load(new File(temp.getRoot(), "missing.properties"));
+  }
+
+  @Test
+  public void testToConfigurationAppliesDefaultsAndCredentials() {
+    Properties handoff = new Properties();
+    handoff.setProperty(BuildBreakerPlugin.QUERY_INTERVAL_KEY, "500");
+
+    Configuration config =
+        QualityGateHandoff.toConfiguration(handoff, ImmutableMap.of("SONAR_TOKEN", "token"));
+
+    assertEquals(500, config.getInt(BuildBreakerPlugin.QUERY_INTERVAL_KEY).get().intValue());
+    assertEquals(30, config.getInt(BuildBreakerPlugin.QUERY_MAX_ATTEMPTS_KEY).get().intValue());
+    assertEquals("token", config.get(CoreProperties.LOGIN).get());
+  }
+
+  @Test
+  public void testToConfigurationWithoutCredentials() {
+    Configuration config =
+        QualityGateHandoff.toConfiguration(new Properties(), Collections.emptyMap());
+
+    assertFalse(config.get(CoreProperties.LOGIN).isPresent());
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+public final class UpstreamQualityGatesTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  // The status of each project and branch, e.g. "lib@main"; the others are not found
+  private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+
+  private HttpServer server;
+  private MapSettings settings;
+
+  @Before
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/qualitygates/project_status", this::respond);
+    server.start();
+
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.CACHE_DIR_KEY, temp.newFolder().getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    String projectKey = null;
+    String branch = null;
+    for (String param : exchange.getRequestURI().getQuery().split("&")) {
+      if (param.startsWith("projectKey=")) {
+        projectKey = param.substring("projectKey=".length());
+      } else if (param.startsWith("branch=")) {
+        branch = param.substring("branch=".length());
+      }
+    }
+    Status status = statuses.get(branch == null ? projectKey : projectKey + "@" + branch);
+    if (status == null) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    byte[] content =
+        ProjectStatusResponse.newBuilder()
+            .setProjectStatus(ProjectStatus.newBuilder().setStatus(status))
+            .build()
+            .toByteArray();
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(content);
+    }
+  }
+
+  private UpstreamQualityGates start() {
+    return start(Deadline.none());
+  }
+
+  private UpstreamQualityGates start(Deadline deadline) {
+    return UpstreamQualityGates.start(
+        new ConfigurationBridge(settings),
+        "http://localhost:" + server.getAddress().getPort(),
+        deadline);
+  }
+
+  @Test
+  public void shouldPassWithoutUpstreamProjects() {
+    UpstreamQualityGates.check(start().results());
+
+    assertEquals(0, requests.get());
+  }
+
+  @Test
+  public void shouldListFailingUpstreamProjects() {
+    statuses.put("lib-a", Status.OK);
+    statuses.put("lib-b@release", Status.WARN);
+    statuses.put("lib-c@main", Status.ERROR);
+    settings.setProperty(
+        BuildBreakerPlugin.UPSTREAM_PROJECTS_KEY, "lib-a,lib-b@release,lib-c@main,lib-d");
+
+    List<String> failures = UpstreamQualityGates.failures(start().results());
+
+    assertEquals(Arrays.asList("lib-c@main", "lib-d"), failures);
+    assertEquals(4, requests.get());
+  }
+
+  @Test
+  public void shouldRecordUpstreamOutcomes() {
+    statuses.put("lib-a", Status.OK);
+    statuses.put("lib-c@main", Status.ERROR);
+    settings.setProperty(BuildBreakerPlugin.UPSTREAM_PROJECTS_KEY, "lib-a,lib-c@main,lib-d");
+
+    List<GateCheckMetrics> results = start().results();
+
+    assertEquals(3, results.size());
+    assertEquals(GateCheckMetrics.PASSED, results.get(0).outcome());
+    assertEquals(GateCheckMetrics.FAILED, results.get(1).outcome());
+    assertEquals(Status.ERROR, results.get(1).projectStatus().getStatus());
+    assertEquals(GateCheckMetrics.ERROR, results.get(2).outcome());
+    assertNotNull(results.get(2).message());
+  }
+
+  @Test
+  public void shouldTimeOutWithCheck() {
+    statuses.put("lib", Status.OK);
+    settings.setProperty(BuildBreakerPlugin.UPSTREAM_PROJECTS_KEY, "lib");
+
+    List<GateCheckMetrics> results = start(Deadline.after(0)).results();
+
+    assertEquals(GateCheckMetrics.TIMED_OUT, results.get(0).outcome());
+    assertEquals(0, requests.get());
+  }
+
+  @Test
+  public void shouldFailIfUpstreamProjectFails() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Upstream projects do not pass the quality gate: lib");
+
+    statuses.put("lib", Status.ERROR);
+    settings.setProperty(BuildBreakerPlugin.UPSTREAM_PROJECTS_KEY, "lib");
+
+    UpstreamQualityGates.check(start().results());
+  }
+
+  @Test
+  public void shouldUseCachedStatus() {
+    statuses.put("lib", Status.OK);
+    settings.setProperty(BuildBreakerPlugin.UPSTREAM_PROJECTS_KEY, "lib");
+    settings.setProperty(BuildBreakerPlugin.UPSTREAM_TTL_KEY, 60000L);
+
+    UpstreamQualityGates.check(start().results());
+    statuses.put("lib", Status.ERROR);
+    List<String> failures = UpstreamQualityGates.failures(start().results());
+
+    assertTrue(failures.isEmpty());
+    assertEquals(1, requests.get());
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * SonarQube Build Breaker Plugin
+ * Copyright (C) 2009-2016 Matthew DeTullio and contributors
+ * mailto:sonarqube@googlegroups.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.buildbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Comparator;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Condition;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.ProjectStatus;
+import org.sonarqube.ws.Qualitygates.ProjectStatusResponse.Status;
+
+public final class WebhookListenerTest {
+  private static final String SECRET = "s3cr3t";
+
+  private static final String PAYLOAD =
+      "{\"taskId\":\"AVdp\",\"status\":\"SUCCESS\",\"project\":{\"key\":\"my-project\"},"
+          + "\"qualityGate\":{\"name\":\"Sonar way\","
+          + "\"status\":\"ERROR\",\"conditions\":[{\"metric\":\"coverage\","
+          + "\"operator\":\"LESS_THAN\",\"value\":\"42.0\",\"status\":\"ERROR\","
+          + "\"errorThreshold\":\"80\"},{\"metric\":\"new_bugs\",\"operator\":\"GREATER_THAN\","
+          + "\"status\":\"NO_VALUE\",\"errorThreshold\":\"0\"}]}}";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private MapSettings settings;
+  private WebhookListener listener;
+
+  @Before
+  public void setup() {
+    settings = new MapSettings();
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_PORT_KEY, 0);
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_PATH_KEY, "/hook");
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_SECRET_KEY, SECRET);
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_TIMEOUT_KEY, 2000);
+  }
+
+  @After
+  public void tearDown() {
+    if (listener != null) {
+      listener.close();
+    }
+  }
+
+  private int post(String payload, String signature) throws IOException {
+    return post(payload, signature, false);
+  }
+
+  private int post(String payload, String signature, boolean chunked) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://127.0.0.1:" + listener.port() + "/hook").openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    if (chunked) {
+      connection.setChunkedStreamingMode(0);
+    }
+    if (signature != null) {
+      connection.setRequestProperty(WebhookListener.HMAC_HEADER, signature);
+    }
+    try (OutputStream body = connection.getOutputStream()) {
+      body.write(payload.getBytes(StandardCharsets.UTF_8));
+    }
+    return connection.getResponseCode();
+  }
+
+  private static String sign(String payload) {
+    return WebhookListener.sign(SECRET, payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testNotStartedWithoutPort() {
+    assertFalse(WebhookListener.start(new ConfigurationBridge(new MapSettings())).isPresent());
+  }
+
+  @Test
+  public void testNotStartedWithoutSecret() {
+    settings.removeProperty(BuildBreakerPlugin.WEBHOOK_SECRET_KEY);
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage(BuildBreakerPlugin.WEBHOOK_SECRET_KEY);
+
+    WebhookListener.start(new ConfigurationBridge(settings));
+  }
+
+  @Test
+  public void testSignedPayloadIsDelivered() throws IOException {
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+    listener.expect("AVdp", "my-project");
+
+    // The payload may arrive before the analysis starts waiting for it
+    assertEquals(200, post(PAYLOAD, sign(PAYLOAD)));
+    Optional<ProjectStatus> projectStatus = listener.await("AVdp", Deadline.none());
+
+    assertTrue(projectStatus.isPresent());
+    assertEquals(Status.ERROR, projectStatus.get().getStatus());
+    assertEquals(2, projectStatus.get().getConditionsCount());
+  }
+
+  @Test
+  public void testInvalidSignatureIsRejected() throws IOException {
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_TIMEOUT_KEY, 100);
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+    listener.expect("AVdp", "my-project");
+
+    assertEquals(401, post(PAYLOAD, sign("{}")));
+    assertEquals(401, post(PAYLOAD, null));
+    assertFalse(listener.await("AVdp", Deadline.none()).isPresent());
+  }
+
+  @Test
+  public void testOtherProjectIsRejected() throws IOException {
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_TIMEOUT_KEY, 100);
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+    listener.expect("AVdp", "other-project");
+
+    assertEquals(400, post(PAYLOAD, sign(PAYLOAD)));
+    assertFalse(listener.await("AVdp", Deadline.none()).isPresent());
+  }
+
+  @Test
+  public void testUnexpectedTaskIsIgnored() throws IOException {
+    settings.setProperty(BuildBreakerPlugin.WEBHOOK_TIMEOUT_KEY, 100);
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+
+    assertEquals(200, post(PAYLOAD, sign(PAYLOAD)));
+    listener.expect("AVdp", "my-project");
+    assertFalse(listener.await("AVdp", Deadline.none()).isPresent());
+  }
+
+  @Test
+  public void testMalformedPayload() throws IOException {
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+
+    assertEquals(400, post("not json", sign("not json")));
+  }
+
+  @Test
+  public void testLargePayloadIsRejected() throws IOException {
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+    String payload = Strings.repeat(" ", WebhookListener.MAX_PAYLOAD_SIZE + 1);
+
+    assertEquals(413, post(payload, sign(payload)));
+    assertEquals(413, post(payload, sign(payload), true));
+  }
+
+  @Test
+  public void testFailedTask() throws IOException {
+    String payload =
+        "{\"taskId\":\"AVdp\",\"status\":\"FAILED\",\"project\":{\"key\":\"my-project\"}}";
+    listener = WebhookListener.start(new ConfigurationBridge(settings)).get();
+    listener.expect("AVdp", "my-project");
+    post(payload, sign(payload));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Report processing did not complete successfully: FAILED");
+
+    listener.await("AVdp", Deadline.none());
+  }
+
+  @Test
+  public void testSignature() {
+    assertEquals(
+        "f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8",
+        WebhookListener.sign(
+            "key", "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8)));
+    assertTrue(WebhookListener.isValidSignature(SECRET, new byte[0], sign("").toUpperCase()));
+    assertFalse(WebhookListener.isValidSignature(SECRET, new byte[0], null));
+  }
+
+  @Test
+  public void testToProjectStatus() {
+    JsonObject payload = new JsonParser().parse(PAYLOAD).getAsJsonObject();
+    ProjectStatus projectStatus =
+        WebhookListener.toProjectStatus(payload.getAsJsonObject("qualityGate"));
+
+    Condition coverage = projectStatus.getConditions(0);
+    assertEquals(Status.ERROR, coverage.getStatus());
+    assertEquals("coverage", coverage.getMetricKey());
+    assertEquals(Comparator.LT, coverage.getComparator());
+    assertEquals("42.0", coverage.getActualValue());
+    assertEquals("80", coverage.getErrorThreshold());
+    assertEquals(Status.NONE, projectStatus.getConditions(1).getStatus());
+
+    assertEquals(Status.NONE, WebhookListener.toProjectStatus(null).getStatus());
+  }
+}